@@ -15,16 +15,47 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,13 +64,75 @@ import java.util.ArrayList;
  */
 public class ProfNetwork {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // sequence backing the msgId column of message.
+   static final String MESSAGE_SEQUENCE = "message_msgid_seq";
+
+   // matches listed by Search when the input is not an exact userId.
+   static final int SEARCH_RESULTS = Integer.getInteger("profnetwork.search.results", 10);
+
+   // file the connection graph is snapshotted to, unset to always load it
+   // from CONNECTION_USR.
+   static final String GRAPH_SNAPSHOT = System.getProperty("profnetwork.graph.snapshot");
+
+   // recommendations shown by PeopleYouMayKnow and kept per user.
+   static final int RECOMMENDATIONS = Integer.getInteger("profnetwork.recommend.k", 10);
+
+   // rows fetched per round trip when streaming a result to standard out.
+   private static final int FETCH_SIZE = Integer.getInteger("profnetwork.fetchSize", 100);
+
+   // cleared once the driver turns down setFetchSize, as the bundled pg73 one does.
+   private static volatile boolean fetchSizeSupported = true;
+
+   // pool of physical database connections shared by the helpers below.
+   private ConnectionPool _pool = null;
+
+   // read replicas from profnetwork.replicas, null when there are none.
+   private ReplicaSet _replicas = null;
+
+   // how long a thread keeps reading from the primary after it wrote.
+   static final long REPLICA_STICKY_MS = Long.getLong("profnetwork.replica.stickyMs", 5000L);
+
+   // last write of the calling thread, see borrowFor.
+   private static final ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+
+   // set while the calling thread must read from the primary.
+   private static final ThreadLocal<Boolean> primaryOnly = new ThreadLocal<Boolean>() {
+      protected Boolean initialValue () {
+         return Boolean.FALSE;
+      }
+   };
+
+   // accepted connections, loaded on first use by getConnectionGraph.
+   private ConnectionGraph _graph = null;
+
+   // suffix of the actions whose listings came from the SessionCache.
+   static final String SESSION_CACHE = " (session cache)";
+
+   // round trips avoided by each menu action, see roundTripsSaved.
+   private final ConcurrentHashMap<String, AtomicLong> _roundTripsSaved =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+   // latency, rows and characters fetched by the helpers, per menu action.
+   private final QueryStats _stats = new QueryStats(
+      Long.getLong("profnetwork.slowQueryMs", 200L), this._roundTripsSaved);
+
+   // userId and name search index, loaded by getUserIndex.
+   private UserIndex _users = null;
+
+   // group commit pipeline for new messages, started by getMessageSender.
+   private MessageSender _sender = null;
+
+   // profiles read by ProfileLoader, invalidated by the profile edits.
+   private final ProfileCache _profiles = new ProfileCache(
+      Long.getLong("profnetwork.profileCache.maxBytes", 4L << 20),
+      Long.getLong("profnetwork.profileCache.ttlMs", 60 * 1000L));
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
+   // This variable can be global for convenience.  It reads from the
+   // session bound to the calling thread, or the terminal when there is none.
+   static final BufferedReader console = new BufferedReader(
                                 new InputStreamReader(System.in));
+   static final BufferedReader in = new SessionReader();
 
    /**
     * Creates a new instance of ProfNetwork
@@ -58,9 +151,28 @@ public class ProfNetwork {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // create the pool and make sure a physical connection can be opened
+         this._pool = new ConnectionPool(url, user, passwd);
+         this._pool.release(this._pool.borrow());
          System.out.println("Done");
+
+         // replicas are listed as host:port, sharing the database and login
+         String replicas = System.getProperty("profnetwork.replicas", "").trim();
+         if (!replicas.isEmpty()){
+            List<String> urls = new ArrayList<String>();
+            for (String replica : replicas.split(","))
+               urls.add("jdbc:postgresql://" + replica.trim() + "/" + dbname);
+            this._replicas = new ReplicaSet(urls, user, passwd);
+            System.out.println("Reading from replicas " + urls);
+         }//end if
+         ensureMessageSequence();
+         migrateSchema();
+         startConnectionLogTrim();
+         this._stats.register();
+         long explainMs = Long.getLong("profnetwork.explain.thresholdMs", 0L);
+         double explainSample = Double.parseDouble(System.getProperty("profnetwork.explain.samplePercent", "0"));
+         if (explainMs > 0 || explainSample > 0)
+            this._stats.setPlanCapture(new PlanCapture(this, explainMs, explainSample));
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -68,129 +180,444 @@ public class ProfNetwork {
       }//end catch
    }//end ProfNetwork
 
+   /**
+    * Picks the pool a statement runs on.  Reads go round robin to the
+    * healthy replicas, unless the thread wrote within the last
+    * profnetwork.replica.stickyMs, is inside onPrimary, or the statement
+    * has side effects (sequences, row locks) or reads the transaction
+    * horizon.  Everything else runs on the primary.  A replica that cannot
+    * hand out a connection is skipped until its retry time.
+    *
+    * @param sql the statement about to run
+    * @return a connection from the chosen pool, handed back through release
+    * @throws java.sql.SQLException when no connection became available
+    */
+   private PooledConnection borrowFor (String sql) throws SQLException {
+      if (this._replicas != null && isReplicaRead(sql)){
+         Long last = lastWrite.get();
+         if (!primaryOnly.get() && (last == null || System.currentTimeMillis() - last >= REPLICA_STICKY_MS)){
+            ConnectionPool replica;
+            while ((replica = this._replicas.next()) != null){
+               try{
+                  return replica.borrow ();
+               }catch (SQLException e){
+                  this._replicas.markDown(replica, e);
+               }//end try
+            }//end while
+         }//end if
+      }//end if
+      return this._pool.borrow ();
+   }//end borrowFor
+
+   /**
+    * Hands a connection back to the pool it came from.  A replica whose
+    * connection broke is skipped until its retry time.
+    */
+   private void release (PooledConnection conn) {
+      if (conn.broken && conn.pool != this._pool && this._replicas != null)
+         this._replicas.markDown(conn.pool, null);
+      conn.pool.release(conn);
+   }//end release
+
+   static boolean isReplicaRead (String sql) {
+      String text = sql.trim().toLowerCase();
+      return text.startsWith("select")
+         && !text.contains("nextval(") && !text.contains("setval(")
+         && !text.contains("for update") && !text.contains("txid_");
+   }//end isReplicaRead
+
+   /** Records that the calling thread wrote, for read your writes. */
+   static void wrote () {
+      lastWrite.set(System.currentTimeMillis());
+   }
+
+   /**
+    * Sends the calling thread's reads to the primary, or back to the
+    * replicas, for reads that must be consistent with the primary.
+    *
+    * @return the previous setting, to restore once those reads are done
+    */
+   static boolean onPrimary (boolean primary) {
+      boolean previous = primaryOnly.get();
+      primaryOnly.set(primary);
+      return previous;
+   }
+
+   /**
+    * @return the replica pools, or null when no replica is configured
+    */
+   public ReplicaSet getReplicas () {
+      return this._replicas;
+   }
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL template
+    * @param params the values bound to the template, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         // fetches the cached statement and issues the update instruction
+         rows = conn.prepare(sql, params).executeUpdate ();
+         wrote ();
+         return rows;
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         this._pool.release(conn);
+         this._stats.record(sql, params, start, rows, 0);
+      }//end try
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out.  Rows are fetched through a server side cursor and
+    * streamed by ResultRenderer, so large listings are never held in memory.
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the template, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rowCount = -1;
+      PooledConnection conn = borrowFor (query);
+      Connection connection = conn.getConnection ();
+      boolean autoCommit = false;
+      try{
+         PreparedStatement stmt = conn.prepare(query, params);
+         // the driver only fetches through a cursor inside a transaction;
+         // without fetch size support the rows come back in one go
+         if (setFetchSize (stmt) && connection.getAutoCommit ()){
+            autoCommit = true;
+            connection.setAutoCommit (false);
+         }//end if
+
+         // issues the query instruction and streams the rows to standard out
+         ResultSet rs = stmt.executeQuery ();
+         rowCount = ResultRenderer.render(rs, start);
+         rs.close ();
+         if (autoCommit)
+            connection.commit ();
+         return rowCount;
+      }catch (SQLException e){
+         conn.failed(e);
+         if (autoCommit && !conn.broken){
+            try{
+               connection.rollback ();
+            }catch (SQLException ignored){
+               conn.failed(ignored);
+            }//end try
+         }//end if
+         throw e;
+      }finally{
+         if (autoCommit && !conn.broken){
+            try{
+               connection.setAutoCommit (true);
+            }catch (SQLException e){
+               conn.failed(e);
+            }//end try
+         }//end if
+         release (conn);
+         this._stats.record(query, params, start, rowCount, rowCount < 0 ? 0 : ResultRenderer.getLastCharsFetched ());
+      }//end try
    }//end executeQuery
 
+   /**
+    * Asks the driver to fetch FETCH_SIZE rows per round trip.
+    *
+    * @return false when the driver does not implement it
+    */
+   private static boolean setFetchSize (PreparedStatement stmt) {
+      if (!fetchSizeSupported)
+         return false;
+      try{
+         stmt.setFetchSize (FETCH_SIZE);
+         return true;
+      }catch (SQLException e){
+         fetchSizeSupported = false;
+         return false;
+      }//end try
+   }
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the template, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-          List<String> record = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i)
-            record.add(rs.getString (i));
-         result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      long chars = 0;
+      PooledConnection conn = borrowFor (query);
+      try{
+         // issues the query instruction
+         ResultSet rs = conn.prepare(query, params).executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+             List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i){
+               String value = rs.getString (i);
+               if (value != null)
+                  chars += value.length ();
+               record.add(value);
+            }//end for
+            result.add(record);
+         }//end while
+         rs.close ();
+         rows = result.size ();
+         return result;
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         release (conn);
+         this._stats.record(query, params, start, rows, chars);
+      }//end try
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query template
+    * @param params the values bound to the template, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = borrowFor (query);
+      try{
+         // issues the query instruction
+         ResultSet rs = conn.prepare(query, params).executeQuery ();
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+         int rowCount = 0;
 
-       int rowCount = 0;
+         // iterates through the result set and count nuber of results.
+         if(rs.next()){
+            rowCount++;
+         }//end while
+         rs.close ();
+         rows = rowCount;
+         return rowCount;
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         release (conn);
+         this._stats.record(query, params, start, rows, 0);
+      }//end try
+   }
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   /**
+    * Maps one row of a result set to an object.  Implementations read the
+    * columns they need with the typed ResultSet getters, so no per-column
+    * strings are created for numeric or timestamp values.
+    */
+   public interface RowMapper<T> {
+      /**
+       * @param rs the result set, positioned on the row to map
+       * @param rowNum the zero based number of the row
+       * @return the mapped object, or null to leave the row out of the result
+       */
+      T mapRow (ResultSet rs, int rowNum) throws SQLException;
    }
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and maps each row with the given
+    * RowMapper.
+    *
+    * @param query the input query template
+    * @param mapper maps each row, rows mapped to null are skipped
+    * @param params the values bound to the template, in order
+    * @return the mapped rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> query (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = borrowFor (query);
+      try{
+         ResultSet rs = conn.prepare(query, params).executeQuery ();
+         List<T> result = new ArrayList<T>();
+         int rowNum = 0;
+         while (rs.next()){
+            T row = mapper.mapRow(rs, rowNum++);
+            if (row != null)
+               result.add(row);
+         }//end while
+         rs.close ();
+         rows = rowNum;
+         return result;
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         release (conn);
+         this._stats.record(query, params, start, rows, 0);
+      }//end try
+   }//end query
+
+   /**
+    * Method to execute a query returning a single number, such as COUNT(*).
+    *
+    * @param query the input query template
+    * @param params the values bound to the template, in order
+    * @return the first column of the first row
+    * @throws java.sql.SQLException when failed to execute the query or it returned no rows
+    */
+   public long queryForLong (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = borrowFor (query);
+      try{
+         ResultSet rs = conn.prepare(query, params).executeQuery ();
+         try{
+            if (!rs.next())
+               throw new SQLException("Query returned no rows: " + query);
+            rows = 1;
+            return rs.getLong(1);
+         }finally{
+            rs.close ();
+         }//end try
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         release (conn);
+         this._stats.record(query, params, start, rows, 0);
+      }//end try
+   }//end queryForLong
+
+   /**
+    * Same as queryForLong, for results known to fit in an int.
+    */
+   public int queryForInt (String query, Object... params) throws SQLException {
+      return (int) queryForLong(query, params);
+   }//end queryForInt
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results column by
+    * column, keeping integer, bigint and date/time columns in primitive
+    * arrays.
+    *
+    * @param query the input query template
+    * @param params the values bound to the template, in order
+    * @return the query result as columns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ColumnarResult queryColumns (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = borrowFor (query);
+      try{
+         ResultSet rs = conn.prepare(query, params).executeQuery ();
+         ColumnarResult result = new ColumnarResult(rs.getMetaData ());
+         rows = 0;
+         while (rs.next()){
+            result.add(rs);
+            ++rows;
+         }//end while
+         rs.close ();
+         return result;
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         release (conn);
+         this._stats.record(query, params, start, rows, 0);
+      }//end try
+   }//end queryColumns
+
+   /**
+    * Method to check whether a query returns any row.  The query is wrapped
+    * in SELECT EXISTS(...), so the DBMS stops at the first match and only a
+    * single boolean comes back.
+    *
+    * @param query the input query template
+    * @param params the values bound to the template, in order
+    * @return true when the query returns at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = borrowFor (query);
+      try{
+         ResultSet rs = conn.prepare("Select exists(" + query + ")", params).executeQuery ();
+         try{
+            rows = 1;
+            return rs.next() && rs.getBoolean(1);
+         }finally{
+            rs.close ();
+         }//end try
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         release (conn);
+         this._stats.record(query, params, start, rows, 0);
+      }//end try
+   }//end exists
+
+   /**
+    * Records round trips a menu action no longer makes, for example because
+    * it reuses the row count of a printed listing instead of re-running it.
+    * Listings served from the SessionCache are counted under the action
+    * followed by SESSION_CACHE, apart from the queries removed outright.
+    *
+    * @param action the menu action, such as FriendList
+    * @param count the number of round trips saved
+    */
+   public void roundTripsSaved (String action, int count) {
+      AtomicLong saved = this._roundTripsSaved.get(action);
+      if (saved == null){
+         AtomicLong fresh = new AtomicLong();
+         saved = this._roundTripsSaved.putIfAbsent(action, fresh);
+         if (saved == null)
+            saved = fresh;
+      }//end if
+      saved.addAndGet(count);
+   }//end roundTripsSaved
+
+   /**
+    * @return round trips saved so far, by menu action
+    */
+   public Map<String, Long> getRoundTripsSaved () {
+      Map<String, Long> result = new TreeMap<String, Long>();
+      for (Map.Entry<String, AtomicLong> entry : this._roundTripsSaved.entrySet())
+         result.put(entry.getKey(), entry.getValue().get());
+      return result;
+   }//end getRoundTripsSaved
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -201,43 +628,4459 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         ResultSet rs = conn.prepare("Select currval(?)", sequence).executeQuery ();
+         try{
+            if (rs.next())
+               return rs.getInt(1);
+            return -1;
+         }finally{
+            rs.close ();
+         }
+      }catch (SQLException e){
+         conn.failed(e);
+         throw e;
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }
+
+   /**
+    * Makes sure the sequence used for message ids exists and is ahead of
+    * every msgId already in the table, so that ids handed out by
+    * MessageIdAllocator never collide with rows written before it was used.
+    * Called once at startup, not on the send path.  CREATE SEQUENCE IF NOT
+    * EXISTS needs PostgreSQL 9.5 or later.
+    */
+   private void ensureMessageSequence () {
+      try{
+         executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + MESSAGE_SEQUENCE);
+         queryForLong("Select setval('" + MESSAGE_SEQUENCE + "', GREATEST((Select COALESCE(MAX(msgId), 0) from message), " +
+                      "(Select last_value from " + MESSAGE_SEQUENCE + "), 1))");
+      }catch (SQLException e){
+         System.err.println("Warning - unable to prepare " + MESSAGE_SEQUENCE + ": " + e.getMessage());
+      }//end try
+   }//end ensureMessageSequence
+
+   /**
+    * Brings the schema up to date and checks the indexes the queries rely
+    * on.  Called once at startup; failures are reported, not fatal.
+    */
+   private void migrateSchema () {
+      SchemaMigrations migrations = new SchemaMigrations(this);
+      try{
+         if (!"false".equals(System.getProperty("profnetwork.migrate")))
+            migrations.migrate();
+         migrations.verify();
+      }catch (SQLException e){
+         System.err.println("Warning - schema migration failed: " + e.getMessage());
+      }//end try
+   }//end migrateSchema
+
+   /**
+    * Hands out message ids from blocks reserved from the message sequence in
+    * one round trip each, for callers that insert many messages and supply
+    * the msgId themselves.  Ids are unique but, with several allocators
+    * running, not necessarily contiguous.
+    */
+   public static class MessageIdAllocator {
+
+      private final ProfNetwork esql;
+      private final int blockSize;
+      private long[] block = new long[0];
+      private int next = 0;
+
+      public MessageIdAllocator (ProfNetwork esql, int blockSize) {
+         this.esql = esql;
+         this.blockSize = blockSize;
+      }
+
+      /**
+       * @return an unused msgId
+       * @throws java.sql.SQLException when a new block could not be reserved
+       */
+      public synchronized long nextId () throws SQLException {
+         if (this.next == this.block.length){
+            List<Long> ids = this.esql.query("Select nextval('" + MESSAGE_SEQUENCE + "') from generate_series(1, ?)",
+               new RowMapper<Long>() {
+                  public Long mapRow (ResultSet rs, int rowNum) throws SQLException {
+                     return rs.getLong(1);
+                  }
+               }, this.blockSize);
+            long[] fresh = new long[ids.size()];
+            for (int i = 0; i < fresh.length; ++i)
+               fresh[i] = ids.get(i);
+            this.block = fresh;
+            this.next = 0;
+         }//end if
+         return this.block[this.next++];
+      }//end nextId
+   }//end MessageIdAllocator
+
+   /**
+    * Group commit pipeline for sending messages.  Senders enqueue messages
+    * on a bounded queue and get a future for the msgId; a single writer
+    * thread drains the queue into one multi-row insert per batch, committed
+    * as a single transaction, so concurrent senders share a commit instead
+    * of paying one each.  A batch is written once it holds maxBatch
+    * messages or the first message in it has waited lingerMs.  When a batch
+    * insert fails its messages are retried one by one, so a bad row only
+    * fails its own future.
+    */
+   public static class MessageSender implements Runnable {
+
+      // how long callers wait for a queued message to be committed.
+      static final long SEND_TIMEOUT_MS = Long.getLong("profnetwork.send.timeoutMs", 30 * 1000L);
+
+      /** A message waiting on the queue, and the future it completes. */
+      private static class Pending {
+         final Object[] values;
+         final CompletableFuture<Long> msgId = new CompletableFuture<Long>();
+
+         Pending (String senderId, String receiverId, String contents, String status) {
+            this.values = new Object[]{ senderId, receiverId, contents, status };
+         }
+      }
+
+      private final ProfNetwork esql;
+      private final BlockingQueue<Pending> queue;
+      private final MessageIdAllocator ids;
+      private final int maxBatch;
+      private final long lingerNanos;
+      private final Thread writer;
+      private volatile boolean closed = false;
+      // set by the writer before its final drain of the queue
+      private volatile boolean stopped = false;
+
+      final AtomicLong batches = new AtomicLong();
+      final AtomicLong messages = new AtomicLong();
+
+      /**
+       * @param queueSize the most messages waiting before send blocks
+       * @param maxBatch the most messages written in one transaction
+       * @param lingerMs how long a message waits for others to join its batch
+       */
+      public MessageSender (ProfNetwork esql, int queueSize, int maxBatch, long lingerMs) {
+         this.esql = esql;
+         this.queue = new ArrayBlockingQueue<Pending>(queueSize);
+         this.ids = new MessageIdAllocator(esql, maxBatch);
+         this.maxBatch = maxBatch;
+         this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+         this.writer = new Thread(this, "message-sender");
+         this.writer.setDaemon(true);
+         this.writer.start();
+      }
+
+      /**
+       * Queues a message, blocking while the queue is full.
+       *
+       * @return a future completed with the msgId once the message is
+       *         committed, or exceptionally when its batch failed
+       */
+      public CompletableFuture<Long> send (String senderId, String receiverId, String contents, String status) throws InterruptedException {
+         if (this.closed)
+            throw new IllegalStateException("message sender is closed");
+         Pending pending = new Pending(senderId, receiverId, contents, status);
+         this.queue.put(pending);
+         // queued after the writer's final drain: nobody else will complete it
+         if (this.stopped && this.queue.remove(pending))
+            pending.msgId.completeExceptionally(new SQLException("message sender is closed"));
+         wrote();
+         return pending.msgId;
+      }//end send
+
+      /**
+       * Stops accepting messages and waits for the queued ones to be written.
+       */
+      public void close () {
+         this.closed = true;
+         try{
+            this.writer.join();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }//end try
+      }//end close
+
+      public long getBatches () { return this.batches.get(); }
+      public long getMessages () { return this.messages.get(); }
+
+      public void run () {
+         List<Pending> batch = new ArrayList<Pending>(this.maxBatch);
+         try{
+            while (!this.closed || !this.queue.isEmpty()){
+               Pending first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+               if (first == null)
+                  continue;
+               batch.add(first);
+               long deadline = System.nanoTime() + this.lingerNanos;
+               while (batch.size() < this.maxBatch){
+                  if (this.queue.drainTo(batch, this.maxBatch - batch.size()) > 0)
+                     continue;
+                  long wait = deadline - System.nanoTime();
+                  Pending next = wait > 0 ? this.queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                  if (next == null)
+                     break;
+                  batch.add(next);
+               }//end while
+               try{
+                  write(batch);
+               }catch (Throwable e){
+                  // fail this batch only; the writer keeps serving the queue
+                  fail(batch, e);
+               }//end try
+               batch.clear();
+            }//end while
+         }catch (InterruptedException e){
+            fail(batch, new SQLException("message sender was interrupted"));
+         }finally{
+            this.stopped = true;
+            List<Pending> left = new ArrayList<Pending>();
+            this.queue.drainTo(left);
+            fail(left, new SQLException("message sender is closed"));
+         }//end try
+      }//end run
+
+      private static void fail (List<Pending> batch, Throwable e) {
+         for (Pending pending : batch)
+            pending.msgId.completeExceptionally(e);
+      }
+
+      /**
+       * Writes one batch as a single insert in its own transaction and
+       * completes each message's future.  When the insert itself fails on a
+       * healthy connection, each message is written again on its own.
+       */
+      private void write (List<Pending> batch) {
+         Object[] params = new Object[batch.size() * 5];
+         long[] assigned = new long[batch.size()];
+         StringBuilder sql = new StringBuilder("Insert into Message Values");
+         PooledConnection conn = null;
+         boolean autoCommit = true;
+         boolean retry = false;
+         try{
+            for (int i = 0; i < batch.size(); ++i){
+               assigned[i] = this.ids.nextId();
+               params[i * 5] = assigned[i];
+               System.arraycopy(batch.get(i).values, 0, params, i * 5 + 1, 4);
+               sql.append(i == 0 ? "" : ",").append("(?, ?, ?, ?, current_timestamp, 0, ?)");
+            }//end for
+            conn = this.esql._pool.borrow();
+            Connection connection = conn.getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try{
+               conn.prepare(sql.toString(), params).executeUpdate();
+               connection.commit();
+            }catch (SQLException e){
+               conn.failed(e);
+               if (!conn.broken)
+                  connection.rollback();
+               // a row the table refused, such as an unknown receiver
+               retry = batch.size() > 1 && !conn.broken;
+               throw e;
+            }finally{
+               if (!conn.broken)
+                  connection.setAutoCommit(autoCommit);
+            }//end try
+            this.batches.incrementAndGet();
+            this.messages.addAndGet(batch.size());
+            for (int i = 0; i < batch.size(); ++i)
+               batch.get(i).msgId.complete(assigned[i]);
+         }catch (SQLException e){
+            if (conn != null)
+               conn.failed(e);
+            if (!retry)
+               fail(batch, e);
+         }finally{
+            if (conn != null)
+               this.esql._pool.release(conn);
+         }//end try
+         if (retry){
+            for (Pending pending : batch)
+               write(Collections.singletonList(pending));
+         }//end if
+      }//end write
+   }//end MessageSender
+
+   /**
+    * @return the number of statements served from the statement cache
+    */
+   public long getStatementCacheHits () {
+      return this._pool.getStatementCacheHits ();
+   }
+
+   /**
+    * @return the number of statements that had to be prepared
+    */
+   public long getStatementCacheMisses () {
+      return this._pool.getStatementCacheMisses ();
+   }
+
+   /**
+    * @return timings of the execute helpers, by menu action
+    */
+   public QueryStats getQueryStats () {
+      return this._stats;
+   }
+
+   /**
+    * @return the pool backing the execute helpers, for its borrow metrics
+    */
+   public ConnectionPool getConnectionPool () {
+      return this._pool;
+   }
+
+   /**
+    * Method to close the physical connections if they are open.
+    */
+   public void cleanup(){
+      synchronized (this){
+         if (this._sender != null)
+            this._sender.close ();
+      }
+      this._stats.unregister ();
+      if (this._replicas != null){
+         this._replicas.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
+   }//end cleanup
+
+   /**
+    * Returns the search index over USR, loading it the first time it is
+    * needed.  CreateUser adds new users to it.
+    *
+    * @return the user index for this database
+    * @throws java.sql.SQLException when failed to load the users
+    */
+   public synchronized UserIndex getUserIndex () throws SQLException {
+      if (this._users == null){
+         final UserIndex index = new UserIndex();
+         // kept for the life of the process, so read where CreateUser wrote
+         boolean primary = onPrimary(true);
+         try{
+            query("Select userId, name from usr",
+               new RowMapper<Void>() {
+                  public Void mapRow (ResultSet rs, int rowNum) throws SQLException {
+                     index.add(rs.getString(1), rs.getString(2));
+                     return null;
+                  }
+               });
+         }finally{
+            onPrimary(primary);
+         }//end try
+         this._users = index;
+      }//end if
+      return this._users;
+   }//end getUserIndex
+
+   /**
+    * Returns the message send pipeline, starting its writer thread the
+    * first time it is needed.  The queue size, batch size and linger come
+    * from the profnetwork.send.queueSize, profnetwork.send.maxBatch and
+    * profnetwork.send.lingerMs system properties.
+    *
+    * @return the message sender for this database
+    */
+   public synchronized MessageSender getMessageSender () {
+      if (this._sender == null){
+         this._sender = new MessageSender(this,
+            Integer.getInteger("profnetwork.send.queueSize", 1024),
+            Integer.getInteger("profnetwork.send.maxBatch", 64),
+            Long.getLong("profnetwork.send.lingerMs", 5L));
+      }//end if
+      return this._sender;
+   }//end getMessageSender
+
+   /**
+    * Returns the in-memory graph of accepted connections and pending
+    * requests, loading it from CONNECTION_USR the first time it is needed.
+    * A background thread then keeps it caught up with the changes other
+    * processes make, see startGraphSync.  When
+    * profnetwork.recommend.precompute is set, the top
+    * profnetwork.recommend.k recommendations of every user are computed in
+    * the background on the common fork join pool after every load.
+    *
+    * @return the connection graph for this database
+    * @throws java.sql.SQLException when failed to load the connections
+    */
+   public synchronized ConnectionGraph getConnectionGraph () throws SQLException {
+      if (this._graph == null){
+         ConnectionGraph loaded;
+         // the rows must be read where the horizon was taken
+         boolean primary = onPrimary(true);
+         try{
+            loaded = GRAPH_SNAPSHOT == null ? null : openGraphSnapshot();
+            if (loaded == null)
+               loaded = loadConnectionGraph();
+         }finally{
+            onPrimary(primary);
+         }//end try
+         this._graph = loaded;
+         precompute(loaded);
+         startGraphSync();
+      }//end if
+      return this._graph;
+   }//end getConnectionGraph
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * Reads the whole graph from CONNECTION_USR, on the primary.
+    */
+   private ConnectionGraph loadConnectionGraph () throws SQLException {
+      ConnectionGraph graph = new ConnectionGraph();
+      long xmin = queryForLong("Select txid_snapshot_xmin(txid_current_snapshot())");
+      applyConnections(graph, "Select userId, connectionId, status from connection_usr where status in ('Accept', 'Request')");
+      graph.markSynced(xmin);
+      return graph;
+   }//end loadConnectionGraph
+
+   private void precompute (final ConnectionGraph graph) {
+      if (!Boolean.getBoolean("profnetwork.recommend.precompute"))
+         return;
+      ForkJoinPool.commonPool().execute(new Runnable() {
+            public void run () {
+               long start = System.nanoTime();
+               graph.precompute(ForkJoinPool.commonPool(), RECOMMENDATIONS);
+               QueryStats.log.println(String.format("Recommendations precomputed in %.1f s",
+                  (System.nanoTime() - start) / 1e9));
+            }
+         });
+   }//end precompute
+
+   /**
+    * Applies the rows returned by a query on CONNECTION_USR to the graph.
+    * Applying a row twice has no effect, so replays may overlap.
+    */
+   private void applyConnections (final ConnectionGraph graph, String query, Object... params) throws SQLException {
+      query(query,
+         new RowMapper<Void>() {
+            public Void mapRow (ResultSet rs, int rowNum) throws SQLException {
+               String status = rs.getString(3);
+               if ("Request".equals(status))
+                  graph.addRequest(rs.getString(1), rs.getString(2));
+               else if ("Accept".equals(status))
+                  graph.addConnection(rs.getString(1), rs.getString(2));
+               else
+                  graph.removeRequest(rs.getString(1), rs.getString(2));
+               return null;
+            }
+         }, params);
+   }//end applyConnections
+
+   /**
+    * Catches the graph up with the rows written by transactions at or
+    * after the horizon it was last synced to.  They are read from
+    * connection_usr_log, which a trigger fills with the writing
+    * transaction's id (schema version 4), through its txid index, so the
+    * catch-up costs the changes since the snapshot, not the table.  Like
+    * the full load, it only sees inserts and updates.
+    *
+    * @return false when the log is missing or was trimmed past the graph
+    */
+   private boolean replayConnections (ConnectionGraph graph) throws SQLException {
+      if (!hasConnectionLog())
+         return false;
+      long synced = graph.getSyncedXmin();
+      long current = queryForLong("Select txid_snapshot_xmin(txid_current_snapshot())");
+      if (synced < queryForLong("Select COALESCE(MAX(txid), 0) from connection_usr_log_floor"))
+         return false;
+      applyConnections(graph, "Select userId, connectionId, status from connection_usr_log where txid >= ? order by txid, seq",
+                       synced);
+      graph.markSynced(current);
+      return true;
+   }//end replayConnections
+
+   /**
+    * @return true when schema version 4 created connection_usr_log
+    */
+   private boolean hasConnectionLog () throws SQLException {
+      return exists("Select 1 from pg_class where relname = 'connection_usr_log_floor'");
    }
 
-   /**
-    * Method to close the physical connection if it is open.
-    */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
-   }//end cleanup
+   /**
+    * Drops the log rows of transactions before the given horizon, raising
+    * the floor first so that a graph synced before it is reloaded rather
+    * than caught up from a log with holes.
+    */
+   private void trimConnectionLog (long horizon) throws SQLException {
+      executeUpdate("Update connection_usr_log_floor set txid = ? where txid < ?", horizon, horizon);
+      executeUpdate("Delete from connection_usr_log where txid < ?", horizon);
+   }//end trimConnectionLog
+
+   /**
+    * Trims connection_usr_log every profnetwork.graph.logRetentionMs down
+    * to the horizon seen one period earlier, whether or not this process
+    * keeps a graph or a snapshot, so the log only holds the changes of the
+    * last one or two periods.  A graph that fell further behind than that
+    * is reloaded from the table, see replayConnections.
+    */
+   private void startConnectionLogTrim () {
+      final long retention = Long.getLong("profnetwork.graph.logRetentionMs", 10 * 60 * 1000L);
+      Thread trimmer = new Thread(new Runnable() {
+            public void run () {
+               // horizon sampled on the previous round, -1 before the first
+               long horizon = -1;
+               try{
+                  while (true){
+                     try{
+                        onPrimary(true);
+                        if (hasConnectionLog()){
+                           long current = queryForLong("Select txid_snapshot_xmin(txid_current_snapshot())");
+                           if (horizon >= 0)
+                              trimConnectionLog(horizon);
+                           horizon = current;
+                        }//end if
+                     }catch (Exception e){
+                        QueryStats.log.println("Warning - unable to trim connection_usr_log: " + e.getMessage());
+                     }//end try
+                     Thread.sleep(retention);
+                  }//end while
+               }catch (InterruptedException e){
+                  // stopped
+               }//end try
+            }
+         }, "connection-log-trim");
+      trimmer.setDaemon(true);
+      trimmer.start();
+   }//end startConnectionLogTrim
+
+   /**
+    * Opens the graph snapshot and catches it up with the table.
+    *
+    * @return the graph, or null when there is no usable snapshot
+    */
+   private ConnectionGraph openGraphSnapshot () throws SQLException {
+      File file = new File(GRAPH_SNAPSHOT);
+      if (!file.exists())
+         return null;
+      try{
+         long start = System.nanoTime();
+         ConnectionGraph graph = new ConnectionGraph(GraphSnapshot.open(file));
+         if (!replayConnections(graph))
+            return null;
+         QueryStats.log.println(String.format("Connection graph opened from %s in %.1f ms", file, (System.nanoTime() - start) / 1e6));
+         return graph;
+      }catch (IOException e){
+         System.err.println("Warning - ignoring connection graph snapshot " + file + ": " + e.getMessage());
+         return null;
+      }//end try
+   }//end openGraphSnapshot
+
+   /**
+    * Catches the graph up with the connection log every
+    * profnetwork.graph.catchUpMs, so that requests and accepts made by
+    * other processes reach the range checks, the recommendations and the
+    * friend flag of cached profiles.  When the log cannot bring the graph
+    * up to date it is reloaded from the table, at most once every
+    * profnetwork.graph.reloadMs.  With profnetwork.graph.snapshot set, a
+    * snapshot of the caught up graph is also written every
+    * profnetwork.graph.snapshotIntervalMs, starting now.
+    */
+   private void startGraphSync () {
+      final long catchUp = Long.getLong("profnetwork.graph.catchUpMs", 5000L);
+      final long reload = Long.getLong("profnetwork.graph.reloadMs", 60 * 1000L) * 1000000L;
+      final long interval = Long.getLong("profnetwork.graph.snapshotIntervalMs", 10 * 60 * 1000L) * 1000000L;
+      final File file = GRAPH_SNAPSHOT == null ? null : new File(GRAPH_SNAPSHOT);
+      Thread sync = new Thread(new Runnable() {
+            public void run () {
+               long reloaded = System.nanoTime();
+               long written = reloaded - interval;
+               try{
+                  while (true){
+                     try{
+                        onPrimary(true);
+                        ConnectionGraph graph;
+                        synchronized (ProfNetwork.this){
+                           graph = _graph;
+                        }//end synchronized
+                        boolean synced = replayConnections(graph);
+                        if (!synced && System.nanoTime() - reloaded >= reload){
+                           graph = loadConnectionGraph();
+                           synchronized (ProfNetwork.this){
+                              _graph = graph;
+                           }//end synchronized
+                           reloaded = System.nanoTime();
+                           precompute(graph);
+                           synced = true;
+                        }//end if
+                        if (synced && file != null && System.nanoTime() - written >= interval){
+                           GraphSnapshot.write(graph, file);
+                           written = System.nanoTime();
+                        }//end if
+                     }catch (Exception e){
+                        QueryStats.log.println("Warning - unable to catch the connection graph up: " + e.getMessage());
+                     }//end try
+                     Thread.sleep(catchUp);
+                  }//end while
+               }catch (InterruptedException e){
+                  // stopped
+               }//end try
+            }
+         }, "graph-sync");
+      sync.setDaemon(true);
+      sync.start();
+   }//end startGraphSync
+
+   /**
+    * A physical database connection handed out by the ConnectionPool.  Each
+    * connection keeps its own LRU cache of prepared statements keyed by SQL
+    * template, since statements cannot be shared between connections.
+    */
+   public static class PooledConnection {
+
+      private static final int STATEMENT_CACHE_SIZE = 64;
+
+      private final ConnectionPool pool;
+      private final Connection connection;
+      private final long createdAt = System.currentTimeMillis();
+      private long lastUsed = createdAt;
+      private boolean broken = false;
+      private final Map<String, PreparedStatement> statements =
+         new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest) {
+               if (size() <= STATEMENT_CACHE_SIZE)
+                  return false;
+               try{
+                  eldest.getValue().close();
+               }catch (SQLException e){
+                  // ignored.
+               }//end try
+               return true;
+            }
+         };
+
+      PooledConnection (ConnectionPool pool, Connection connection) {
+         this.pool = pool;
+         this.connection = connection;
+      }
+
+      /**
+       * @return the underlying JDBC connection
+       */
+      public Connection getConnection () {
+         return this.connection;
+      }
+
+      /**
+       * Returns the prepared statement for a SQL template, preparing it on
+       * the first use, with the given parameters bound in order.
+       */
+      public PreparedStatement prepare (String sql, Object... params) throws SQLException {
+         PreparedStatement stmt = this.statements.get(sql);
+         if (stmt == null){
+            this.pool.statementMisses.incrementAndGet();
+            stmt = this.connection.prepareStatement(sql);
+            this.statements.put(sql, stmt);
+         }else{
+            this.pool.statementHits.incrementAndGet();
+            stmt.clearParameters();
+         }//end if
+         for (int i = 0; i < params.length; ++i){
+            if (params[i] == null)
+               stmt.setNull(i + 1, Types.VARCHAR);
+            else
+               stmt.setObject(i + 1, params[i]);
+         }//end for
+         return stmt;
+      }//end prepare
+
+      /**
+       * Records a failed statement.  When the failure was caused by the
+       * connection itself, the pool discards it instead of reusing it.
+       */
+      public void failed (SQLException e) {
+         String state = e.getSQLState();
+         if (state != null && state.startsWith("08")){
+            this.broken = true;
+            return;
+         }//end if
+         try{
+            this.broken = this.connection.isClosed();
+         }catch (SQLException ignored){
+            this.broken = true;
+         }//end try
+      }//end failed
+
+      void close () {
+         try{
+            for (PreparedStatement stmt : this.statements.values())
+               stmt.close();
+            this.statements.clear();
+            this.connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end PooledConnection
+
+   /**
+    * Versioned schema migrations run at startup.  Applied versions are kept
+    * in profnetwork_schema_version, and a version is recorded once all its
+    * statements succeeded.  A migration is either index builds, run with
+    * CREATE INDEX CONCURRENTLY outside any transaction so that writes to
+    * the table go on during the build, or other statements, run in one
+    * transaction.  The migrations create the indexes behind the menu
+    * queries; verify then warns about any of them that is missing or
+    * invalid, and report lists size, estimated bloat and scans of every
+    * index on the application tables.  Set profnetwork.migrate=false to
+    * only verify, for example when the schema is managed elsewhere.
+    */
+   public static class SchemaMigrations {
+
+      /** One schema version and the statements that bring it about. */
+      static class Migration {
+         final int version;
+         final String description;
+         final String[] statements;
+
+         Migration (int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+         }
+
+         /** @return true when the migration only builds indexes */
+         boolean concurrent () {
+            for (String statement : this.statements)
+               if (!statement.startsWith("CREATE INDEX CONCURRENTLY"))
+                  return false;
+            return true;
+         }
+      }
+
+      // pg_advisory_lock key held while migrating, "PNSCHEMA" in ASCII
+      private static final long LOCK_KEY = 0x504E534348454D41L;
+
+      static final Migration[] MIGRATIONS = {
+         new Migration(1, "connection lookups by either side and status",
+            // FriendList, exists checks and the graph load
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS connection_usr_user_status_idx ON connection_usr (userId, status, connectionId)",
+            // ActionRequest, FriendList
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS connection_usr_connection_status_idx ON connection_usr (connectionId, status, userId)"),
+         new Migration(2, "mailbox listings in keyset order",
+            // ViewMessages unread and read listings, same predicate as Mailbox
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS message_inbox_idx ON message (receiverId, status, sendTime, msgId) WHERE deleteStatus NOT IN (2, 3)",
+            // ViewMessages outgoing listing
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS message_outbox_idx ON message (senderId, sendTime, msgId) WHERE deleteStatus NOT IN (1, 3)",
+            // SendMessages drafts
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS message_sender_status_idx ON message (senderId, status)"),
+         new Migration(3, "education and work rows in listing order",
+            // ViewEdu, UpdateEdu, DeleteEdu and RowKeyQuery
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS educational_details_user_start_idx ON educational_details (userId, startdate)",
+            // ViewExp, UpdateExp, DeleteExp and RowKeyQuery
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS work_expr_user_start_idx ON work_expr (userId, startDate)"),
+         new Migration(4, "log of connection changes for the graph snapshot catch-up",
+            // rows inserted or updated in connection_usr, by writing transaction
+            "CREATE TABLE IF NOT EXISTS connection_usr_log AS Select userId, connectionId, status from connection_usr WITH NO DATA",
+            "ALTER TABLE connection_usr_log ADD COLUMN txid bigint NOT NULL DEFAULT txid_current(), ADD COLUMN seq bigserial",
+            // changes of transactions before this one are not in the log
+            "CREATE TABLE IF NOT EXISTS connection_usr_log_floor (txid bigint NOT NULL)",
+            "Insert into connection_usr_log_floor Select txid_current()",
+            "CREATE OR REPLACE FUNCTION connection_usr_log_row () RETURNS trigger AS $$ BEGIN " +
+            "Insert into connection_usr_log (userId, connectionId, status) Values (NEW.userId, NEW.connectionId, NEW.status); " +
+            "RETURN NULL; END $$ LANGUAGE plpgsql",
+            "DROP TRIGGER IF EXISTS connection_usr_log_trg ON connection_usr",
+            "CREATE TRIGGER connection_usr_log_trg AFTER INSERT OR UPDATE ON connection_usr " +
+            "FOR EACH ROW EXECUTE PROCEDURE connection_usr_log_row ()"),
+         new Migration(5, "connection log in catch-up order",
+            // replayConnections
+            "CREATE INDEX CONCURRENTLY IF NOT EXISTS connection_usr_log_txid_idx ON connection_usr_log (txid, seq)")
+      };
+
+      static final List<String> TABLES = Arrays.asList(
+         "usr", "connection_usr", "message", "work_expr", "educational_details");
+
+      private final ProfNetwork esql;
+
+      public SchemaMigrations (ProfNetwork esql) {
+         this.esql = esql;
+      }
+
+      /**
+       * Applies the migrations newer than the recorded schema version.
+       *
+       * @return the number of migrations applied
+       * @throws java.sql.SQLException when a migration failed; the ones
+       *         before it stay applied
+       */
+      public int migrate () throws SQLException {
+         this.esql.executeUpdate("CREATE TABLE IF NOT EXISTS profnetwork_schema_version (" +
+                                 "version integer PRIMARY KEY, description text NOT NULL, " +
+                                 "applied_at timestamp NOT NULL DEFAULT current_timestamp)");
+         int applied = 0;
+         PooledConnection conn = this.esql._pool.borrow();
+         try{
+            // a session lock keeps two starting instances from racing; unlike
+            // a table lock it needs no transaction, which CONCURRENTLY forbids
+            conn.prepare("Select pg_advisory_lock(?)", LOCK_KEY).executeQuery().close();
+            try{
+               for (Migration migration : MIGRATIONS){
+                  ResultSet rs = conn.prepare("Select 1 from profnetwork_schema_version where version = ?", migration.version).executeQuery();
+                  boolean done = rs.next();
+                  rs.close();
+                  if (done)
+                     continue;
+                  try{
+                     if (migration.concurrent())
+                        buildIndexes(conn, migration);
+                     else
+                        runInTransaction(conn, migration);
+                     conn.prepare("Insert into profnetwork_schema_version (version, description) Values (?, ?)",
+                                  migration.version, migration.description).executeUpdate();
+                  }catch (SQLException e){
+                     conn.failed(e);
+                     throw new SQLException("Schema version " + migration.version + " failed: " + e.getMessage());
+                  }//end try
+                  ++applied;
+                  QueryStats.log.println("Applied schema version " + migration.version + ": " + migration.description);
+               }//end for
+            }finally{
+               if (!conn.broken)
+                  conn.prepare("Select pg_advisory_unlock(?)", LOCK_KEY).executeQuery().close();
+            }//end try
+         }finally{
+            this.esql._pool.release(conn);
+         }//end try
+         return applied;
+      }//end migrate
+
+      /**
+       * Builds the indexes of a migration one at a time, each in its own
+       * implicit transaction.  A build that failed before left an invalid
+       * index, which IF NOT EXISTS would keep, so that one is dropped first.
+       */
+      private static void buildIndexes (PooledConnection conn, Migration migration) throws SQLException {
+         for (String statement : migration.statements){
+            String name = indexName(statement);
+            ResultSet rs = conn.prepare("Select 1 from pg_index i join pg_class c on c.oid = i.indexrelid " +
+                                        "where c.relname = ? and not i.indisvalid and pg_table_is_visible(c.oid)", name).executeQuery();
+            boolean invalid = rs.next();
+            rs.close();
+            if (invalid)
+               conn.prepare("DROP INDEX CONCURRENTLY IF EXISTS " + name).executeUpdate();
+            conn.prepare(statement).executeUpdate();
+         }//end for
+      }//end buildIndexes
+
+      private static void runInTransaction (PooledConnection conn, Migration migration) throws SQLException {
+         Connection connection = conn.getConnection();
+         connection.setAutoCommit(false);
+         try{
+            for (String statement : migration.statements)
+               conn.prepare(statement).executeUpdate();
+            connection.commit();
+         }catch (SQLException e){
+            conn.failed(e);
+            if (!conn.broken)
+               connection.rollback();
+            throw e;
+         }finally{
+            if (!conn.broken)
+               connection.setAutoCommit(true);
+         }//end try
+      }//end runInTransaction
+
+      /** @return the name following IF NOT EXISTS in a CREATE INDEX statement */
+      static String indexName (String statement) {
+         String[] words = statement.split("\\s+");
+         for (int i = 0; i + 1 < words.length; ++i)
+            if (words[i].equals("EXISTS"))
+               return words[i + 1];
+         return null;
+      }//end indexName
+
+      /**
+       * @return the names of the indexes the migrations create
+       */
+      static List<String> requiredIndexes () {
+         List<String> names = new ArrayList<String>();
+         for (Migration migration : MIGRATIONS){
+            for (String statement : migration.statements){
+               if (statement.startsWith("CREATE INDEX"))
+                  names.add(indexName(statement));
+            }//end for
+         }//end for
+         return names;
+      }//end requiredIndexes
+
+      /**
+       * Warns about required indexes that are missing or left invalid by a
+       * failed concurrent build.
+       *
+       * @return the names of those indexes
+       */
+      public List<String> verify () throws SQLException {
+         List<String> valid = this.esql.query(
+            "Select c.relname from pg_index i join pg_class c on c.oid = i.indexrelid " +
+            "where i.indisvalid and c.relkind = 'i' and pg_table_is_visible(c.oid)",
+            new RowMapper<String>() {
+               public String mapRow (ResultSet rs, int rowNum) throws SQLException {
+                  return rs.getString(1);
+               }
+            });
+         List<String> missing = new ArrayList<String>();
+         for (String name : requiredIndexes()){
+            if (!valid.contains(name.toLowerCase())){
+               missing.add(name);
+               QueryStats.log.println("Warning - index " + name + " is missing or invalid, the queries using it will scan");
+            }//end if
+         }//end for
+         return missing;
+      }//end verify
+
+      /**
+       * Prints size, estimated bloat and scans of every index on the
+       * application tables.  Bloat compares the size on disk with the size
+       * expected from the row count and the average width of the indexed
+       * columns at the default fill factor, so it is only an estimate.
+       */
+      public void report () throws SQLException {
+         // the scan counts are kept per server; the primary's are the ones that matter
+         boolean primary = onPrimary(true);
+         List<String[]> rows;
+         try{
+            rows = this.esql.query(
+               "Select s.relname, s.indexrelname, s.idx_scan, pg_relation_size(s.indexrelid), c.reltuples, " +
+               "(Select COALESCE(SUM(t.avg_width), 0) from pg_attribute a join pg_stats t " +
+               "on t.tablename = s.relname and t.attname = a.attname where a.attrelid = s.indexrelid) " +
+               "from pg_stat_user_indexes s join pg_class c on c.oid = s.indexrelid " +
+               "where s.relname in (?, ?, ?, ?, ?) order by s.relname, s.indexrelname",
+               new RowMapper<String[]>() {
+                  public String[] mapRow (ResultSet rs, int rowNum) throws SQLException {
+                     long bytes = rs.getLong(4);
+                     double tuples = rs.getDouble(5);
+                     // index tuple header and line pointer, 90% fill factor
+                     double expected = Math.max(8192, tuples * (rs.getLong(6) + 12) / 0.9);
+                     long scans = rs.getLong(3);
+                     return new String[]{ rs.getString(1), rs.getString(2), String.valueOf(scans),
+                                          String.valueOf(bytes / 1024), String.format("%.1f", bytes / expected),
+                                          scans == 0 ? "unused" : "" };
+                  }
+               }, TABLES.toArray());
+         }finally{
+            onPrimary(primary);
+         }//end try
+         printRows(new String[]{ "table", "index", "scans", "kbytes", "bloat", "" }, rows);
+      }//end report
+   }//end SchemaMigrations
+
+   /**
+    * Read replicas of the database, handed out round robin.  A replica that
+    * failed is skipped until profnetwork.replica.retryMs have passed, after
+    * which the next borrow tries it again; connections are validated by
+    * the ConnectionPool as usual.
+    */
+   public static class ReplicaSet {
+
+      private final ConnectionPool[] pools;
+      private final String[] urls;
+      private final java.util.concurrent.atomic.AtomicLongArray downUntil;
+      private final java.util.concurrent.atomic.AtomicInteger turn = new java.util.concurrent.atomic.AtomicInteger();
+      private final long retryMs = Long.getLong("profnetwork.replica.retryMs", 5000L);
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong failovers = new AtomicLong();
+
+      public ReplicaSet (List<String> urls, String user, String passwd) {
+         this.urls = urls.toArray(new String[urls.size()]);
+         this.pools = new ConnectionPool[this.urls.length];
+         for (int i = 0; i < this.pools.length; ++i)
+            this.pools[i] = new ConnectionPool(this.urls[i], user, passwd);
+         this.downUntil = new java.util.concurrent.atomic.AtomicLongArray(this.pools.length);
+      }
+
+      /**
+       * @return the next healthy replica, or null when all are down or
+       *         have been tried by this call's caller already
+       */
+      ConnectionPool next () {
+         long now = System.currentTimeMillis();
+         for (int tries = 0; tries < this.pools.length; ++tries){
+            int i = (this.turn.getAndIncrement() & Integer.MAX_VALUE) % this.pools.length;
+            if (this.downUntil.get(i) <= now){
+               this.reads.incrementAndGet();
+               return this.pools[i];
+            }//end if
+         }//end for
+         return null;
+      }//end next
+
+      void markDown (ConnectionPool pool, SQLException cause) {
+         for (int i = 0; i < this.pools.length; ++i){
+            if (this.pools[i] == pool){
+               long until = System.currentTimeMillis() + this.retryMs;
+               if (this.downUntil.getAndSet(i, until) <= System.currentTimeMillis()){
+                  this.failovers.incrementAndGet();
+                  QueryStats.log.println("Warning - replica " + this.urls[i] + " is down"
+                     + (cause == null ? "" : ": " + cause.getMessage()) + ", retrying in " + this.retryMs + " ms");
+               }//end if
+            }//end if
+         }//end for
+      }//end markDown
+
+      public long getReads () { return this.reads.get(); }
+      public long getFailovers () { return this.failovers.get(); }
+
+      /** @return true when the replica at index i is currently in rotation */
+      public boolean isUp (int i) { return this.downUntil.get(i) <= System.currentTimeMillis(); }
+      public List<String> getUrls () { return Arrays.asList(this.urls); }
+
+      public void close () {
+         for (ConnectionPool pool : this.pools)
+            pool.close();
+      }
+   }//end ReplicaSet
+
+   /**
+    * Bounded pool of physical connections.  Idle connections are validated
+    * before reuse once they have been idle for a while, recycled after a
+    * maximum lifetime, and replaced transparently when they break.  The
+    * limits can be set through the profnetwork.pool.* system properties.
+    */
+   public static class ConnectionPool {
+
+      private final String url;
+      private final String user;
+      private final String passwd;
+      private final int maxSize = Integer.getInteger("profnetwork.pool.size", 8);
+      private final long borrowTimeout = Long.getLong("profnetwork.pool.timeoutMs", 5000L);
+      private final long maxLifetime = Long.getLong("profnetwork.pool.maxLifetimeMs", 30 * 60 * 1000L);
+      private final long validateAfter = Long.getLong("profnetwork.pool.validateAfterMs", 30 * 1000L);
+
+      private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+      private int open = 0;
+      private boolean closed = false;
+
+      // borrow metrics, guarded by the pool monitor
+      private long borrows = 0;
+      private long timeouts = 0;
+      private long reconnects = 0;
+      private long totalWaitNanos = 0;
+      private long maxWaitNanos = 0;
+
+      final AtomicLong statementHits = new AtomicLong();
+      final AtomicLong statementMisses = new AtomicLong();
+
+      public ConnectionPool (String url, String user, String passwd) {
+         this.url = url;
+         this.user = user;
+         this.passwd = passwd;
+      }
+
+      /**
+       * Borrows a connection, waiting up to the borrow timeout when every
+       * connection is in use.
+       *
+       * @return a validated connection, to be handed back through release
+       * @throws java.sql.SQLException when no connection became available
+       */
+      public PooledConnection borrow () throws SQLException {
+         long start = System.nanoTime();
+         while (true){
+            PooledConnection conn = null;
+            synchronized (this){
+               while (conn == null){
+                  if (this.closed)
+                     throw new SQLException("Connection pool is closed");
+                  if (!this.idle.isEmpty()){
+                     conn = this.idle.removeLast();
+                  }else if (this.open < this.maxSize){
+                     ++this.open;
+                     break;
+                  }else{
+                     long left = this.borrowTimeout - (System.nanoTime() - start) / 1000000L;
+                     if (left <= 0){
+                        ++this.timeouts;
+                        throw new SQLException("Timed out after " + this.borrowTimeout
+                                               + " ms waiting for a database connection");
+                     }//end if
+                     try{
+                        wait(left);
+                     }catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a database connection");
+                     }//end try
+                  }//end if
+               }//end while
+            }//end synchronized
+
+            if (conn == null){
+               try{
+                  conn = new PooledConnection(this, DriverManager.getConnection(this.url, this.user, this.passwd));
+               }catch (SQLException e){
+                  synchronized (this){
+                     --this.open;
+                     notifyAll();
+                  }//end synchronized
+                  throw e;
+               }//end try
+            }else if (!isUsable(conn)){
+               discard(conn);
+               synchronized (this){
+                  ++this.reconnects;
+               }//end synchronized
+               continue;
+            }//end if
+
+            long waited = System.nanoTime() - start;
+            synchronized (this){
+               ++this.borrows;
+               this.totalWaitNanos += waited;
+               this.maxWaitNanos = Math.max(this.maxWaitNanos, waited);
+            }//end synchronized
+            return conn;
+         }//end while
+      }//end borrow
+
+      private boolean isUsable (PooledConnection conn) {
+         long now = System.currentTimeMillis();
+         if (now - conn.createdAt > this.maxLifetime)
+            return false;
+         if (now - conn.lastUsed < this.validateAfter)
+            return true;
+         try{
+            Statement stmt = conn.connection.createStatement();
+            try{
+               stmt.executeQuery("SELECT 1").close();
+            }finally{
+               stmt.close();
+            }//end try
+            return true;
+         }catch (SQLException e){
+            return false;
+         }//end try
+      }//end isUsable
+
+      /**
+       * Hands a borrowed connection back to the pool.  Broken connections
+       * are closed so that the next borrow opens a fresh one.
+       */
+      public void release (PooledConnection conn) {
+         if (conn.broken){
+            discard(conn);
+            return;
+         }//end if
+         conn.lastUsed = System.currentTimeMillis();
+         synchronized (this){
+            if (!this.closed){
+               this.idle.addLast(conn);
+               notifyAll();
+               return;
+            }//end if
+         }//end synchronized
+         discard(conn);
+      }//end release
+
+      private void discard (PooledConnection conn) {
+         conn.close();
+         synchronized (this){
+            --this.open;
+            notifyAll();
+         }//end synchronized
+      }//end discard
+
+      /**
+       * Closes every idle connection; connections still borrowed are closed
+       * when they are released.
+       */
+      public void close () {
+         List<PooledConnection> toClose;
+         synchronized (this){
+            this.closed = true;
+            toClose = new ArrayList<PooledConnection>(this.idle);
+            this.idle.clear();
+         }//end synchronized
+         for (PooledConnection conn : toClose)
+            discard(conn);
+      }//end close
+
+      public long getStatementCacheHits () { return this.statementHits.get(); }
+      public long getStatementCacheMisses () { return this.statementMisses.get(); }
+      public synchronized int getOpenConnections () { return this.open; }
+      public synchronized long getBorrowCount () { return this.borrows; }
+      public synchronized long getBorrowTimeouts () { return this.timeouts; }
+      public synchronized long getReconnects () { return this.reconnects; }
+      public synchronized double getAverageBorrowWaitMillis () {
+         return this.borrows == 0 ? 0 : this.totalWaitNanos / 1e6 / this.borrows;
+      }
+      public synchronized double getMaxBorrowWaitMillis () { return this.maxWaitNanos / 1e6; }
+   }//end ConnectionPool
+
+   /**
+    * @return the cache of profiles read by ProfileLoader
+    */
+   public ProfileCache getProfileCache () {
+      return this._profiles;
+   }//end getProfileCache
+
+   /**
+    * Adjacency index of the accepted connections in CONNECTION_USR.  User ids
+    * are interned to ints so that the breadth first searches only touch int
+    * arrays.  Connections are treated as undirected, matching the union of
+    * both directions used by FriendList.  Pending requests are kept
+    * alongside, and "people you may know" recommendations are derived from
+    * the adjacency and cached per user until a change near that user.
+    * Readers share a read lock; changes take the write lock.
+    *
+    * A graph can start from a GraphSnapshot.  The snapshot's users keep
+    * their ids and their connections are read from the mapped file; users
+    * and connections added afterwards live in the on-heap arrays below.
+    */
+   public static class ConnectionGraph {
+
+      // users interned after the snapshot, their ids follow the snapshot's
+      private final Map<String, Integer> ids = new HashMap<String, Integer>();
+      private final List<String> names = new ArrayList<String>();
+      // connections added after the snapshot, rows allocated on first use
+      private int[][] adj;
+      private int[] degree;
+      private final GraphSnapshot base;
+      private final int baseUsers;
+      // txid_snapshot_xmin of the last time the graph was read from the table
+      private volatile long syncedXmin = 0;
+      // pending requests, as pairKey of the two interned ids
+      private final Set<Long> requests = new HashSet<Long>();
+      private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+      // top recommendations per interned id, see recommend and precompute
+      private final ConcurrentHashMap<Integer, Ranked> recommendations =
+         new ConcurrentHashMap<Integer, Ranked>();
+
+      /** The best recommendations of one user, out of at most k. */
+      private static class Ranked {
+         final int k;
+         final Recommendation[] top;
+
+         Ranked (int k, Recommendation[] top) {
+            this.k = k;
+            this.top = top;
+         }
+      }
+
+      public ConnectionGraph () {
+         this(null);
+      }
+
+      /**
+       * @param base the snapshot to start from, or null for an empty graph
+       */
+      public ConnectionGraph (GraphSnapshot base) {
+         this.base = base;
+         this.baseUsers = base == null ? 0 : base.users();
+         this.adj = new int[Math.max(16, this.baseUsers)][];
+         this.degree = new int[this.adj.length];
+         if (base != null){
+            for (int i = 0; i < base.requests(); ++i)
+               this.requests.add(pairKey(base.requestFrom(i), base.requestTo(i)));
+            this.syncedXmin = base.syncedXmin();
+         }//end if
+      }
+
+      /**
+       * Returns the interned id of a user, or -1 when the user has no
+       * accepted connections or pending requests.
+       */
+      public int idOf (String userId) {
+         Integer id = ids.get(userId);
+         if (id != null)
+            return id.intValue();
+         return base == null ? -1 : base.find(userId);
+      }//end idOf
+
+      /** @return the userId interned as id */
+      String nameOf (int id) {
+         return id < baseUsers ? base.name(id) : names.get(id - baseUsers);
+      }
+
+      /** @return the number of interned users */
+      int size () {
+         return baseUsers + names.size();
+      }
+
+      /** @return the number of connections of u */
+      int degreeOf (int u) {
+         return (u < baseUsers ? base.degree(u) : 0) + degree[u];
+      }
+
+      /** @return the j-th connection of u, snapshot connections first */
+      int neighbor (int u, int j) {
+         int fromBase = u < baseUsers ? base.degree(u) : 0;
+         return j < fromBase ? base.neighbor(u, j) : adj[u][j - fromBase];
+      }
+
+      private int intern (String userId) {
+         int id = idOf(userId);
+         if (id >= 0)
+            return id;
+         int next = size();
+         if (next == adj.length){
+            adj = Arrays.copyOf(adj, next * 2);
+            degree = Arrays.copyOf(degree, next * 2);
+         }//end if
+         ids.put(userId, next);
+         names.add(userId);
+         return next;
+      }//end intern
+
+      private void link (int from, int to) {
+         if (from < baseUsers && base.isNeighbor(from, to))
+            return;
+         int[] list = adj[from];
+         for (int i = 0; i < degree[from]; ++i)
+            if (list[i] == to)
+               return;
+         if (list == null)
+            adj[from] = list = new int[4];
+         else if (degree[from] == list.length)
+            adj[from] = list = Arrays.copyOf(list, list.length * 2);
+         list[degree[from]++] = to;
+      }//end link
+
+      /** @return the pending requests, as pairs of interned ids */
+      List<int[]> requestPairs () {
+         List<int[]> pairs = new ArrayList<int[]>(this.requests.size());
+         for (long key : this.requests)
+            pairs.add(new int[]{ (int) (key >>> 32), (int) key });
+         return pairs;
+      }
+
+      /**
+       * @return the txid_snapshot_xmin recorded by the last markSynced,
+       *         rows written by transactions from then on may be missing
+       */
+      public long getSyncedXmin () {
+         return this.syncedXmin;
+      }
+
+      /**
+       * Records that the graph holds every row committed before the given
+       * transaction horizon.
+       */
+      public void markSynced (long xmin) {
+         this.syncedXmin = xmin;
+      }
+
+      /** @return the read lock, held while a snapshot is written */
+      java.util.concurrent.locks.Lock readLock () {
+         return this.lock.readLock();
+      }
+
+      /**
+       * Records an accepted connection between two users.  Called while
+       * loading and whenever ActionRequest accepts a request.
+       */
+      public void addConnection (String userId, String connectionId) {
+         if (userId == null || connectionId == null || userId.equals(connectionId))
+            return;
+         this.lock.writeLock().lock();
+         try{
+            int a = intern(userId);
+            int b = intern(connectionId);
+            link(a, b);
+            link(b, a);
+            this.requests.remove(pairKey(a, b));
+            // the second degree of both users and of their friends changed
+            forgetAround(a);
+            forgetAround(b);
+         }finally{
+            this.lock.writeLock().unlock();
+         }//end try
+      }//end addConnection
+
+      /**
+       * Records a pending request between two users.  Called while loading
+       * and whenever SendRequest sends one.
+       */
+      public void addRequest (String userId, String connectionId) {
+         if (userId == null || connectionId == null || userId.equals(connectionId))
+            return;
+         this.lock.writeLock().lock();
+         try{
+            int a = intern(userId);
+            int b = intern(connectionId);
+            this.requests.add(pairKey(a, b));
+            this.recommendations.remove(a);
+            this.recommendations.remove(b);
+         }finally{
+            this.lock.writeLock().unlock();
+         }//end try
+      }//end addRequest
+
+      /**
+       * Forgets a pending request that was rejected.
+       */
+      public void removeRequest (String userId, String connectionId) {
+         this.lock.writeLock().lock();
+         try{
+            int a = idOf(userId);
+            int b = idOf(connectionId);
+            if (a >= 0 && b >= 0 && this.requests.remove(pairKey(a, b))){
+               this.recommendations.remove(a);
+               this.recommendations.remove(b);
+            }//end if
+         }finally{
+            this.lock.writeLock().unlock();
+         }//end try
+      }//end removeRequest
+
+      private static long pairKey (int a, int b) {
+         return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+      }
+
+      private void forgetAround (int u) {
+         this.recommendations.remove(u);
+         for (int i = 0, n = degreeOf(u); i < n; ++i)
+            this.recommendations.remove(neighbor(u, i));
+      }//end forgetAround
+
+      /**
+       * Checks whether two distinct users are at most maxHops connections
+       * apart.  The search expands the smaller frontier from either end and
+       * stops as soon as the frontiers meet or the hop budget is spent.
+       */
+      public boolean isWithinHops (String from, String to, int maxHops) {
+         this.lock.readLock().lock();
+         try{
+            return withinHops(from, to, maxHops);
+         }finally{
+            this.lock.readLock().unlock();
+         }//end try
+      }//end isWithinHops
+
+      private boolean withinHops (String from, String to, int maxHops) {
+         int src = idOf(from);
+         int dst = idOf(to);
+         if (src < 0 || dst < 0 || src == dst)
+            return false;
+
+         int n = size();
+         // 0 = unseen, 1 = reached from src, 2 = reached from dst
+         byte[] side = new byte[n];
+         int[] srcFrontier = { src };
+         int[] dstFrontier = { dst };
+         int srcSize = 1, dstSize = 1;
+         side[src] = 1;
+         side[dst] = 2;
+
+         for (int hops = 0; hops < maxHops; ++hops){
+            boolean fromSrc = srcSize <= dstSize;
+            int[] frontier = fromSrc ? srcFrontier : dstFrontier;
+            int size = fromSrc ? srcSize : dstSize;
+            byte mine = (byte) (fromSrc ? 1 : 2);
+            int[] next = new int[Math.max(size, 4)];
+            int nextSize = 0;
+            for (int i = 0; i < size; ++i){
+               int u = frontier[i];
+               for (int j = 0, d = degreeOf(u); j < d; ++j){
+                  int v = neighbor(u, j);
+                  if (side[v] == mine)
+                     continue;
+                  if (side[v] != 0)
+                     return true;
+                  side[v] = mine;
+                  if (nextSize == next.length)
+                     next = Arrays.copyOf(next, next.length * 2);
+                  next[nextSize++] = v;
+               }//end for
+            }//end for
+            if (nextSize == 0)
+               return false;
+            if (fromSrc){
+               srcFrontier = next;
+               srcSize = nextSize;
+            }else{
+               dstFrontier = next;
+               dstSize = nextSize;
+            }//end if
+         }//end for
+         return false;
+      }//end withinHops
+
+      /**
+       * Ranks the users two connections away from a user by the number of
+       * connections they share, leaving out existing friends and users with
+       * a pending request either way.  Ties go to the smaller userId.
+       *
+       * @param userId the user to recommend to
+       * @param k the most recommendations to return
+       * @return the recommendations, best first
+       */
+      public List<Recommendation> recommend (String userId, int k) {
+         this.lock.readLock().lock();
+         try{
+            int u = idOf(userId);
+            if (u < 0 || k <= 0)
+               return new ArrayList<Recommendation>();
+            Ranked ranked = this.recommendations.get(u);
+            if (ranked == null || ranked.k < k){
+               ranked = rank(u, k);
+               this.recommendations.put(u, ranked);
+            }//end if
+            return Arrays.asList(Arrays.copyOf(ranked.top, Math.min(k, ranked.top.length)));
+         }finally{
+            this.lock.readLock().unlock();
+         }//end try
+      }//end recommend
+
+      /**
+       * Computes the top k recommendations of every user in parallel and
+       * caches them, so that recommend answers from memory until a change
+       * near the user.  The read lock is taken per slice of 256 users, so
+       * an Accept or SendRequest waits for one slice, not the whole run.
+       *
+       * @param pool the fork join pool to run on
+       * @param k the number of recommendations kept per user
+       */
+      public void precompute (ForkJoinPool pool, final int k) {
+         final int n;
+         this.lock.readLock().lock();
+         try{
+            n = size();
+         }finally{
+            this.lock.readLock().unlock();
+         }//end try
+         pool.invoke(new RecursiveAction() {
+               private static final long serialVersionUID = 1L;
+               protected void compute () {
+                  rankRange(0, n);
+               }
+
+               private void rankRange (final int from, final int to) {
+                  if (to - from <= 256){
+                     lock.readLock().lock();
+                     try{
+                        for (int u = from; u < to; ++u)
+                           recommendations.put(u, rank(u, k));
+                     }finally{
+                        lock.readLock().unlock();
+                     }//end try
+                     return;
+                  }//end if
+                  final int mid = (from + to) >>> 1;
+                  invokeAll(new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+                        protected void compute () { rankRange(from, mid); }
+                     }, new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+                        protected void compute () { rankRange(mid, to); }
+                     });
+               }
+            });
+      }//end precompute
+
+      /**
+       * Counts mutual connections over the friends of friends of u and keeps
+       * the k best in a bounded heap.  Called with the read lock held.
+       */
+      private Ranked rank (int u, int k) {
+         Map<Integer, int[]> mutual = new HashMap<Integer, int[]>();
+         int friends = degreeOf(u);
+         for (int i = 0; i < friends; ++i){
+            int f = neighbor(u, i);
+            for (int j = 0, d = degreeOf(f); j < d; ++j){
+               int candidate = neighbor(f, j);
+               if (candidate == u)
+                  continue;
+               int[] count = mutual.get(candidate);
+               if (count == null)
+                  mutual.put(candidate, count = new int[1]);
+               ++count[0];
+            }//end for
+         }//end for
+         for (int i = 0; i < friends; ++i)
+            mutual.remove(neighbor(u, i));
+
+         PriorityQueue<Recommendation> heap = new PriorityQueue<Recommendation>(k + 1, Recommendation.WORST_FIRST);
+         for (Map.Entry<Integer, int[]> entry : mutual.entrySet()){
+            int candidate = entry.getKey();
+            if (this.requests.contains(pairKey(u, candidate)))
+               continue;
+            heap.add(new Recommendation(nameOf(candidate), entry.getValue()[0]));
+            if (heap.size() > k)
+               heap.poll();
+         }//end for
+         Recommendation[] top = new Recommendation[heap.size()];
+         for (int i = top.length - 1; i >= 0; --i)
+            top[i] = heap.poll();
+         return new Ranked(k, top);
+      }//end rank
+   }//end ConnectionGraph
+
+   /**
+    * Compressed sparse row snapshot of a ConnectionGraph, written to a file
+    * and mapped read only, so that a restart does not rebuild the graph
+    * from CONNECTION_USR and the bulk of it stays off the heap.  The file
+    * holds, after a header, the userIds sorted so that a user's id is its
+    * position (found by binary search), each user's sorted connections as
+    * CSR offset and neighbor arrays, and the pending requests.  Every
+    * integer is big endian.
+    *
+    * <pre>
+    * "PNGRAPH1" long syncedXmin, int users, int neighbors, int requests,
+    *    int dictionaryBytes
+    * int[users + 1] neighbor offsets, int[neighbors] neighbors
+    * int[requests * 2] request pairs
+    * int[users + 1] dictionary offsets, byte[dictionaryBytes] UTF-8 userIds
+    * </pre>
+    */
+   public static class GraphSnapshot {
+
+      private static final byte[] MAGIC = "PNGRAPH1".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+      private static final int HEADER = MAGIC.length + 8 + 4 * 4;
+
+      private final long syncedXmin;
+      private final int users;
+      private final java.nio.IntBuffer offsets;
+      private final java.nio.IntBuffer neighbors;
+      private final java.nio.IntBuffer requestPairs;
+      private final java.nio.IntBuffer dictionaryOffsets;
+      private final java.nio.ByteBuffer dictionary;
+
+      private GraphSnapshot (java.nio.ByteBuffer buf) throws IOException {
+         byte[] magic = new byte[MAGIC.length];
+         buf.get(magic);
+         if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a connection graph snapshot");
+         this.syncedXmin = buf.getLong();
+         this.users = buf.getInt();
+         int neighborCount = buf.getInt();
+         int requestCount = buf.getInt();
+         int dictionaryBytes = buf.getInt();
+         this.offsets = slice(buf, (this.users + 1) * 4).asIntBuffer();
+         this.neighbors = slice(buf, neighborCount * 4).asIntBuffer();
+         this.requestPairs = slice(buf, requestCount * 8).asIntBuffer();
+         this.dictionaryOffsets = slice(buf, (this.users + 1) * 4).asIntBuffer();
+         this.dictionary = slice(buf, dictionaryBytes);
+      }
+
+      private static java.nio.ByteBuffer slice (java.nio.ByteBuffer buf, int length) {
+         java.nio.ByteBuffer part = buf.slice();
+         part.limit(length);
+         buf.position(buf.position() + length);
+         return part;
+      }
+
+      /**
+       * Maps a snapshot file.
+       *
+       * @throws java.io.IOException when the file is missing or not a snapshot
+       */
+      public static GraphSnapshot open (File file) throws IOException {
+         java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r");
+         try{
+            java.nio.channels.FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER)
+               throw new IOException("Truncated connection graph snapshot");
+            // the mapping stays valid once the channel is closed
+            return new GraphSnapshot(channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+         }catch (java.nio.BufferUnderflowException e){
+            throw new IOException("Truncated connection graph snapshot");
+         }catch (IllegalArgumentException e){
+            throw new IOException("Truncated connection graph snapshot");
+         }finally{
+            raf.close();
+         }//end try
+      }//end open
+
+      /**
+       * Writes a snapshot of the graph, to a temporary file first so that a
+       * reader never maps a half written snapshot.  Only the copy of the
+       * graph is made under its read lock; sorting and writing run without
+       * it, so Accept and SendRequest are not held up by the disk.
+       */
+      public static void write (ConnectionGraph graph, File file) throws IOException {
+         int n;
+         final String[] names;
+         int[] offsets;
+         int[] neighbors;
+         List<int[]> requests;
+         long syncedXmin;
+         graph.readLock().lock();
+         try{
+            n = graph.size();
+            names = new String[n];
+            offsets = new int[n + 1];
+            for (int i = 0; i < n; ++i){
+               names[i] = graph.nameOf(i);
+               offsets[i + 1] = offsets[i] + graph.degreeOf(i);
+            }//end for
+            neighbors = new int[offsets[n]];
+            for (int i = 0; i < n; ++i)
+               for (int j = 0, d = graph.degreeOf(i); j < d; ++j)
+                  neighbors[offsets[i] + j] = graph.neighbor(i, j);
+            requests = graph.requestPairs();
+            syncedXmin = graph.getSyncedXmin();
+         }finally{
+            graph.readLock().unlock();
+         }//end try
+
+         // the file orders users by userId, so ids change
+         Integer[] order = new Integer[n];
+         for (int i = 0; i < n; ++i)
+            order[i] = i;
+         Arrays.sort(order, new java.util.Comparator<Integer>() {
+               public int compare (Integer a, Integer b) {
+                  return names[a].compareTo(names[b]);
+               }
+            });
+         int[] remap = new int[n];
+         for (int i = 0; i < n; ++i)
+            remap[order[i]] = i;
+
+         int neighborCount = neighbors.length;
+         byte[][] encoded = new byte[n][];
+         int dictionaryBytes = 0;
+         for (int i = 0; i < n; ++i){
+            encoded[i] = names[order[i]].getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            dictionaryBytes += encoded[i].length;
+         }//end for
+
+         File partial = new File(file.getPath() + ".tmp");
+         java.io.DataOutputStream out = new java.io.DataOutputStream(
+            new java.io.BufferedOutputStream(new java.io.FileOutputStream(partial), 1 << 16));
+         try{
+            out.write(MAGIC);
+            out.writeLong(syncedXmin);
+            out.writeInt(n);
+            out.writeInt(neighborCount);
+            out.writeInt(requests.size());
+            out.writeInt(dictionaryBytes);
+            int offset = 0;
+            out.writeInt(0);
+            for (int i = 0; i < n; ++i){
+               offset += offsets[order[i] + 1] - offsets[order[i]];
+               out.writeInt(offset);
+            }//end for
+            for (int i = 0; i < n; ++i){
+               int u = order[i];
+               int[] row = new int[offsets[u + 1] - offsets[u]];
+               for (int j = 0; j < row.length; ++j)
+                  row[j] = remap[neighbors[offsets[u] + j]];
+               // sorted rows let isNeighbor binary search
+               Arrays.sort(row);
+               for (int v : row)
+                  out.writeInt(v);
+            }//end for
+            for (int[] pair : requests){
+               out.writeInt(remap[pair[0]]);
+               out.writeInt(remap[pair[1]]);
+            }//end for
+            offset = 0;
+            out.writeInt(0);
+            for (int i = 0; i < n; ++i){
+               offset += encoded[i].length;
+               out.writeInt(offset);
+            }//end for
+            for (byte[] name : encoded)
+               out.write(name);
+         }finally{
+            out.close();
+         }//end try
+         if (!partial.renameTo(file)){
+            file.delete();
+            if (!partial.renameTo(file))
+               throw new IOException("Unable to replace " + file);
+         }//end if
+      }//end write
+
+      public long syncedXmin () { return this.syncedXmin; }
+      public int users () { return this.users; }
+      public int requests () { return this.requestPairs.limit() / 2; }
+      public int requestFrom (int i) { return this.requestPairs.get(i * 2); }
+      public int requestTo (int i) { return this.requestPairs.get(i * 2 + 1); }
+
+      public int degree (int u) {
+         return this.offsets.get(u + 1) - this.offsets.get(u);
+      }
+
+      public int neighbor (int u, int j) {
+         return this.neighbors.get(this.offsets.get(u) + j);
+      }
+
+      public boolean isNeighbor (int u, int v) {
+         int low = this.offsets.get(u), high = this.offsets.get(u + 1) - 1;
+         while (low <= high){
+            int mid = (low + high) >>> 1;
+            int w = this.neighbors.get(mid);
+            if (w == v)
+               return true;
+            if (w < v)
+               low = mid + 1;
+            else
+               high = mid - 1;
+         }//end while
+         return false;
+      }//end isNeighbor
+
+      public String name (int u) {
+         int start = this.dictionaryOffsets.get(u);
+         byte[] bytes = new byte[this.dictionaryOffsets.get(u + 1) - start];
+         java.nio.ByteBuffer view = this.dictionary.duplicate();
+         view.position(start);
+         view.get(bytes);
+         return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+      }//end name
+
+      /** @return the id of a userId, or -1 when it is not in the snapshot */
+      public int find (String userId) {
+         int low = 0, high = this.users - 1;
+         while (low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = name(mid).compareTo(userId);
+            if (cmp == 0)
+               return mid;
+            if (cmp < 0)
+               low = mid + 1;
+            else
+               high = mid - 1;
+         }//end while
+         return -1;
+      }//end find
+   }//end GraphSnapshot
+
+   /**
+    * In-memory index over USR(userId, name) for the Search menu.  Lower
+    * cased userIds, names and name words are kept in a sorted map for
+    * prefix lookups, and in a trigram inverted index for typo tolerant
+    * lookups: keys of about the query's length sharing enough trigrams
+    * with it are checked with a bounded edit distance.  Results rank exact
+    * matches first, then prefixes, then fuzzy matches by distance.
+    */
+   public static class UserIndex {
+
+      /** A user found by search, best matches having the lowest rank. */
+      public static class Match {
+         public final String userId;
+         public final String name;
+         final int rank;
+
+         Match (String userId, String name, int rank) {
+            this.userId = userId;
+            this.name = name;
+            this.rank = rank;
+         }
+      }//end Match
+
+      private final List<String> userIds = new ArrayList<String>();
+      private final List<String> names = new ArrayList<String>();
+      private final Map<String, Integer> ids = new HashMap<String, Integer>();
+      // lower cased userId, name and name words, to the users having them
+      private final TreeMap<String, int[]> keys = new TreeMap<String, int[]>();
+      // the same keys numbered in the order they were first indexed
+      private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+      private final List<String> keyTexts = new ArrayList<String>();
+      // trigram and key length, as "gram/length", to the ids of those keys
+      private final Map<String, int[]> trigrams = new HashMap<String, int[]>();
+      private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+      /**
+       * Adds a user, or replaces the name of one already indexed.
+       */
+      public void add (String userId, String name) {
+         if (userId == null)
+            return;
+         this.lock.writeLock().lock();
+         try{
+            Integer id = this.ids.get(userId);
+            if (id == null){
+               id = this.userIds.size();
+               this.ids.put(userId, id);
+               this.userIds.add(userId);
+               this.names.add(name);
+               index(userId, id);
+            }else{
+               this.names.set(id, name);
+            }//end if
+            if (name != null){
+               index(name, id);
+               for (String word : name.trim().split("\\s+"))
+                  index(word, id);
+            }//end if
+         }finally{
+            this.lock.writeLock().unlock();
+         }//end try
+      }//end add
+
+      private void index (String text, int id) {
+         String key = text.trim().toLowerCase();
+         if (key.isEmpty())
+            return;
+         append(this.keys, key, id);
+         if (!this.keyIds.containsKey(key)){
+            int keyId = this.keyTexts.size();
+            this.keyIds.put(key, keyId);
+            this.keyTexts.add(key);
+            for (String gram : trigrams(key))
+               append(this.trigrams, gram + "/" + key.length(), keyId);
+         }//end if
+      }//end index
+
+      /**
+       * Appends an id to a posting list kept as an int array whose first
+       * element is the count.  A key repeated within one add, such as a
+       * one word name, is caught as the last id; a renamed user may end up
+       * listed twice, which search tolerates.  Key ids are handed out in
+       * increasing order, which keeps the trigram lists sorted.
+       */
+      private static void append (Map<String, int[]> map, String key, int id) {
+         int[] list = map.get(key);
+         if (list == null){
+            map.put(key, new int[]{ 1, id });
+            return;
+         }//end if
+         if (list[list[0]] == id)
+            return;
+         if (list[0] + 1 == list.length){
+            list = Arrays.copyOf(list, list.length * 2);
+            map.put(key, list);
+         }//end if
+         list[++list[0]] = id;
+      }//end append
+
+      /**
+       * The trigrams of a key, padded so that short keys have some.  The
+       * second and later occurrences of a trigram get a #n suffix, so that
+       * counting shared grams counts repeats too, as the bound on edits
+       * assumes.
+       */
+      static List<String> trigrams (String key) {
+         String padded = "  " + key + " ";
+         List<String> grams = new ArrayList<String>(padded.length() - 2);
+         Map<String, Integer> seen = new HashMap<String, Integer>();
+         for (int i = 0; i + 3 <= padded.length(); ++i){
+            String gram = padded.substring(i, i + 3);
+            Integer count = seen.get(gram);
+            seen.put(gram, count == null ? 1 : count + 1);
+            grams.add(count == null ? gram : gram + "#" + (count + 1));
+         }//end for
+         return grams;
+      }//end trigrams
+
+      /**
+       * @param text what the user typed: part of a userId or name
+       * @param limit the most matches returned
+       * @return the matches, best first
+       */
+      public List<Match> search (String text, int limit) {
+         String query = text.trim().toLowerCase();
+         List<Match> result = new ArrayList<Match>();
+         if (query.isEmpty() || limit <= 0)
+            return result;
+         this.lock.readLock().lock();
+         try{
+            // best rank per user: 0 exact, 1 prefix, 2 + distance for fuzzy
+            Map<Integer, Integer> ranks = new HashMap<Integer, Integer>();
+            for (Map.Entry<String, int[]> entry : this.keys.subMap(query, true, query + Character.MAX_VALUE, false).entrySet()){
+               int rank = entry.getKey().equals(query) ? 0 : 1;
+               int[] list = entry.getValue();
+               for (int i = 1; i <= list[0]; ++i)
+                  better(ranks, list[i], rank);
+            }//end for
+
+            // one edit at a time: once exact, prefix and closer matches fill
+            // the limit, farther ones could not make the cut.  No typos on
+            // one or two characters, and two only from seven characters,
+            // where the trigram filter still needs two shared trigrams
+            int maxDistance = query.length() <= 2 ? 0 : query.length() <= 6 ? 1 : 2;
+            for (int distance = 1; distance <= maxDistance && ranks.size() < limit; ++distance)
+               fuzzy(query, distance, ranks);
+
+            for (Map.Entry<Integer, Integer> entry : ranks.entrySet())
+               result.add(new Match(this.userIds.get(entry.getKey()), this.names.get(entry.getKey()), entry.getValue()));
+         }finally{
+            this.lock.readLock().unlock();
+         }//end try
+         Collections.sort(result, new java.util.Comparator<Match>() {
+               public int compare (Match a, Match b) {
+                  if (a.rank != b.rank)
+                     return a.rank - b.rank;
+                  if (a.userId.length() != b.userId.length())
+                     return a.userId.length() - b.userId.length();
+                  return a.userId.compareTo(b.userId);
+               }
+            });
+         return result.size() > limit ? new ArrayList<Match>(result.subList(0, limit)) : result;
+      }//end search
+
+      /**
+       * Ranks the users having a key exactly the given number of edits away
+       * from the query, as 2 + edits.  Called with the read lock held.
+       */
+      private void fuzzy (String query, int edits, Map<Integer, Integer> ranks) {
+         List<String> grams = trigrams(query);
+         // each edit spoils at most three trigrams
+         int needed = Math.max(1, grams.size() - 3 * edits);
+         int from = Math.max(1, query.length() - edits), to = query.length() + edits;
+         for (int length = from; length <= to; ++length){
+            List<int[]> lists = new ArrayList<int[]>();
+            for (String gram : grams){
+               int[] list = this.trigrams.get(gram + "/" + length);
+               if (list != null)
+                  lists.add(list);
+            }//end for
+            if (lists.size() < needed)
+               continue;
+            // a key sharing needed trigrams is in one of the rarest
+            // lists.size() - needed + 1 lists; the others are probed
+            Collections.sort(lists, new java.util.Comparator<int[]>() {
+                  public int compare (int[] a, int[] b) {
+                     return a[0] - b[0];
+                  }
+               });
+            Set<Integer> seen = new HashSet<Integer>();
+            for (int l = 0; l <= lists.size() - needed; ++l){
+               int[] list = lists.get(l);
+               for (int i = 1; i <= list[0]; ++i){
+                  int keyId = list[i];
+                  if (!seen.add(keyId))
+                     continue;
+                  // keys in a rarer list were seen there already
+                  int shared = 1;
+                  for (int o = l + 1; o < lists.size() && shared + lists.size() - o >= needed; ++o){
+                     int[] other = lists.get(o);
+                     if (Arrays.binarySearch(other, 1, other[0] + 1, keyId) >= 0)
+                        ++shared;
+                  }//end for
+                  if (shared < needed)
+                     continue;
+                  String key = this.keyTexts.get(keyId);
+                  if (distance(query, key, edits) != edits)
+                     continue;
+                  int[] users = this.keys.get(key);
+                  for (int u = 1; u <= users[0]; ++u)
+                     better(ranks, users[u], 2 + edits);
+               }//end for
+            }//end for
+         }//end for
+      }//end fuzzy
+
+      private static void better (Map<Integer, Integer> ranks, int id, int rank) {
+         Integer seen = ranks.get(id);
+         if (seen == null || rank < seen)
+            ranks.put(id, rank);
+      }
+
+      /**
+       * Levenshtein distance, giving up with max + 1 once it is certain to
+       * be over max.
+       */
+      static int distance (String a, String b, int max) {
+         if (Math.abs(a.length() - b.length()) > max)
+            return max + 1;
+         int[] previous = new int[b.length() + 1];
+         int[] current = new int[b.length() + 1];
+         for (int j = 0; j <= b.length(); ++j)
+            previous[j] = j;
+         for (int i = 1; i <= a.length(); ++i){
+            current[0] = i;
+            int best = current[0];
+            for (int j = 1; j <= b.length(); ++j){
+               int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+               current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+               best = Math.min(best, current[j]);
+            }//end for
+            if (best > max)
+               return max + 1;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+         }//end for
+         return previous[b.length()];
+      }//end distance
+   }//end UserIndex
+
+   /**
+    * A user recommended by ConnectionGraph.recommend, with the number of
+    * connections they share with the user it was made for.
+    */
+   public static class Recommendation {
+
+      static final java.util.Comparator<Recommendation> WORST_FIRST = new java.util.Comparator<Recommendation>() {
+            public int compare (Recommendation a, Recommendation b) {
+               if (a.mutual != b.mutual)
+                  return a.mutual < b.mutual ? -1 : 1;
+               return b.userId.compareTo(a.userId);
+            }
+         };
+
+      public final String userId;
+      public final int mutual;
+
+      Recommendation (String userId, int mutual) {
+         this.userId = userId;
+         this.mutual = mutual;
+      }
+   }//end Recommendation
+
+   /**
+    * Prints a single row in the same layout as executeQueryAndPrintResult.
+    */
+   static void printRows (String[] header, String... row) {
+      List<String[]> rows = new ArrayList<String[]>();
+      rows.add(row);
+      printRows(header, rows);
+   }
+
+   /**
+    * Prints rows in the same layout as executeQueryAndPrintResult: a tab
+    * separated header when there is at least one row, then one line per row.
+    */
+   static void printRows (String[] header, List<String[]> rows) {
+      if (rows.isEmpty())
+         return;
+      StringBuilder out = new StringBuilder();
+      for (String column : header)
+         out.append(column).append('\t');
+      out.append('\n');
+      for (String[] row : rows){
+         for (String value : row)
+            out.append(value).append('\t');
+         out.append('\n');
+      }//end for
+      out().print(out);
+   }//end printRows
+
+   /**
+    * A user's profile together with whether the viewer is connected to them,
+    * as loaded by ProfileLoader.
+    */
+   public static class Profile {
+
+      static final String[] EDUCATION_COLUMNS = { "instituitionname", "major", "degree", "startdate", "enddate" };
+      static final String[] WORK_COLUMNS = { "company", "role", "location", "startdate", "enddate" };
+
+      public String userId;
+      public String name;
+      public String email;
+      public String dateOfBirth;
+      // whether the viewer has an accepted connection with this user
+      public boolean friend;
+      // rows of instituitionname, major, degree, startdate, enddate
+      public final List<String[]> education = new ArrayList<String[]>();
+      // rows of company, role, location, startdate, enddate
+      public final List<String[]> work = new ArrayList<String[]>();
+
+      /**
+       * Returns a copy of this profile, sharing the rows, with the friendship
+       * flag of another viewer.
+       */
+      Profile viewedBy (boolean friend) {
+         Profile copy = new Profile();
+         copy.userId = this.userId;
+         copy.name = this.name;
+         copy.email = this.email;
+         copy.dateOfBirth = this.dateOfBirth;
+         copy.friend = friend;
+         copy.education.addAll(this.education);
+         copy.work.addAll(this.work);
+         return copy;
+      }//end viewedBy
+
+      /**
+       * @return a rough estimate of the bytes held by this profile
+       */
+      long weight () {
+         long bytes = 64 + chars(this.userId) + chars(this.name) + chars(this.email) + chars(this.dateOfBirth);
+         for (String[] row : this.education)
+            bytes += 32 + chars(row);
+         for (String[] row : this.work)
+            bytes += 32 + chars(row);
+         return bytes;
+      }//end weight
+
+      private static long chars (String... values) {
+         long bytes = 0;
+         for (String value : values)
+            bytes += value == null ? 8 : 40 + 2L * value.length();
+         return bytes;
+      }
+
+      public void printEducation () {
+         printRows(EDUCATION_COLUMNS, this.education);
+      }
+
+      public void printWork () {
+         printRows(WORK_COLUMNS, this.work);
+      }
+
+   }//end Profile
+
+   /**
+    * Loads a whole profile in one round trip.  The user row, the viewer's
+    * friendship flag and the education and work rows are combined with
+    * UNION ALL into one result tagged by a section column.  Profiles found
+    * in the ProfileCache are served without a query, taking the friendship
+    * flag from the connection graph instead.
+    */
+   public static class ProfileLoader {
+
+      private static final String PROFILE_QUERY =
+         "Select 0 as section, U.userId as c1, U.name as c2, U.email as c3, CAST(U.dateOfBirth AS text) as c4, " +
+         "CAST(exists(Select 1 from connection_usr C where C.status = 'Accept' and " +
+         "((C.userId = ? and C.connectionId = U.userId) or (C.connectionId = ? and C.userId = U.userId))) AS text) as c5 " +
+         "From USR U Where U.userId = ? " +
+         "union all " +
+         "Select 1, instituitionname, major, degree, CAST(startdate AS text), CAST(enddate AS text) " +
+         "From educational_details E Where E.userId = ? " +
+         "union all " +
+         "Select 2, company, role, location, CAST(startDate AS text), CAST(endDate AS text) " +
+         "From work_expr W Where W.userId = ? " +
+         "Order by section, c4";
+
+      /**
+       * @param esql the database helpers
+       * @param viewerId the user looking at the profile
+       * @param userId the user whose profile is loaded
+       * @return the profile, or null when the user does not exist
+       * @throws java.sql.SQLException when failed to execute the query
+       */
+      public static Profile load (ProfNetwork esql, String viewerId, String userId) throws SQLException {
+         Profile cached = esql.getProfileCache().get(userId);
+         if (cached != null)
+            return cached.viewedBy(esql.getConnectionGraph().isWithinHops(viewerId, userId, 1));
+
+         final Profile profile = new Profile();
+         // the cache is shared and outlives replication lag, so it is only
+         // filled from the primary
+         boolean primary = onPrimary(true);
+         List<String[]> found;
+         try{
+            found = esql.query(PROFILE_QUERY, new RowMapper<String[]>() {
+                  public String[] mapRow (ResultSet rs, int rowNum) throws SQLException {
+                     String[] values = { rs.getString(2), rs.getString(3), rs.getString(4),
+                                         rs.getString(5), rs.getString(6) };
+                     switch (rs.getInt(1)){
+                        case 0:
+                           profile.userId = values[0];
+                           profile.name = values[1];
+                           profile.email = values[2];
+                           profile.dateOfBirth = values[3];
+                           profile.friend = "true".equals(values[4]);
+                           return values;
+                        case 1: profile.education.add(values); break;
+                        case 2: profile.work.add(values); break;
+                     }
+                     return null;
+                  }
+               }, viewerId, viewerId, userId, userId, userId);
+         }finally{
+            onPrimary(primary);
+         }//end try
+         // the user row sorts first, without it the user does not exist
+         if (found.isEmpty())
+            return null;
+         esql.getProfileCache().put(userId, profile);
+         return profile;
+      }//end load
+   }//end ProfileLoader
+
+   /**
+    * Bounded LRU cache of profiles keyed by userId.  Entries are weighed by
+    * their approximate size and the least recently used ones are evicted
+    * once the total passes maxBytes.  Entries also expire after ttlMillis so
+    * that changes made outside the application are picked up.
+    */
+   public static class ProfileCache {
+
+      private static class Entry {
+         final Profile profile;
+         final long weight;
+         final long loadedAt;
+
+         Entry (Profile profile, long weight, long loadedAt) {
+            this.profile = profile;
+            this.weight = weight;
+            this.loadedAt = loadedAt;
+         }
+      }
+
+      private final long maxBytes;
+      private final long ttlMillis;
+      private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+      private long bytes = 0;
+      private long hits = 0;
+      private long misses = 0;
+      private long evictions = 0;
+      private long expirations = 0;
+      private long invalidations = 0;
+
+      public ProfileCache (long maxBytes, long ttlMillis) {
+         this.maxBytes = maxBytes;
+         this.ttlMillis = ttlMillis;
+      }
+
+      /**
+       * @return the cached profile, or null when absent or expired
+       */
+      public synchronized Profile get (String userId) {
+         Entry entry = this.entries.get(userId);
+         if (entry != null && System.currentTimeMillis() - entry.loadedAt > this.ttlMillis){
+            remove(userId);
+            ++this.expirations;
+            entry = null;
+         }//end if
+         if (entry == null){
+            ++this.misses;
+            return null;
+         }//end if
+         ++this.hits;
+         return entry.profile;
+      }//end get
+
+      public synchronized void put (String userId, Profile profile) {
+         long weight = profile.weight();
+         if (weight > this.maxBytes)
+            return;
+         remove(userId);
+         this.entries.put(userId, new Entry(profile, weight, System.currentTimeMillis()));
+         this.bytes += weight;
+         Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+         while (this.bytes > this.maxBytes && eldest.hasNext()){
+            this.bytes -= eldest.next().getValue().weight;
+            eldest.remove();
+            ++this.evictions;
+         }//end while
+      }//end put
+
+      /**
+       * Drops the profile of a user whose details were just changed.
+       */
+      public synchronized void invalidate (String userId) {
+         if (remove(userId))
+            ++this.invalidations;
+      }//end invalidate
+
+      private boolean remove (String userId) {
+         Entry entry = this.entries.remove(userId);
+         if (entry == null)
+            return false;
+         this.bytes -= entry.weight;
+         return true;
+      }//end remove
+
+      public synchronized long getHits () { return this.hits; }
+      public synchronized long getMisses () { return this.misses; }
+      public synchronized long getEvictions () { return this.evictions; }
+      public synchronized long getExpirations () { return this.expirations; }
+      public synchronized long getInvalidations () { return this.invalidations; }
+      public synchronized int size () { return this.entries.size(); }
+      public synchronized long getBytes () { return this.bytes; }
+
+      public synchronized String toString () {
+         return String.format("profiles=%d bytes=%d hits=%d misses=%d evictions=%d expirations=%d invalidations=%d",
+                              this.entries.size(), this.bytes, this.hits, this.misses,
+                              this.evictions, this.expirations, this.invalidations);
+      }
+   }//end ProfileCache
+
+   /**
+    * Management interface of QueryStats, registered as
+    * ProfNetwork:type=QueryStats on the platform MBean server.
+    */
+   public interface QueryStatsMBean {
+      /** @return one line per menu action: calls, errors, latency percentiles, rows, chars */
+      String[] getSummary ();
+      long getSlowQueryMillis ();
+      void setSlowQueryMillis (long millis);
+      long getSlowQueries ();
+      /** @return the latest plan captured for each statement, see PlanCapture */
+      String[] getPlans ();
+      void reset ();
+   }
+
+   /**
+    * Opt-in capture of query plans.  Statements recorded by QueryStats that
+    * took at least profnetwork.explain.thresholdMs, or fall in a
+    * profnetwork.explain.samplePercent sample, are run again in the
+    * background under EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) inside a
+    * transaction that is rolled back; at most 16 captures wait for the
+    * worker and the rest are dropped.  The latest plan of each statement
+    * template is kept with its call site; sequential scans on the big
+    * tables are flagged, and a plan whose shape differs from the previous
+    * capture of the same template is logged as a plan change.  Statements
+    * touching sequences are never re-run, since nextval is not rolled back.
+    */
+   public static class PlanCapture {
+
+      static final List<String> WATCHED = Arrays.asList("message", "connection_usr", "usr");
+      private static final int KEEP = 100;
+
+      private static final java.util.regex.Pattern NODE = java.util.regex.Pattern.compile(
+         "\"Node Type\": \"([^\"]+)\"(?:[^{}\\[\\]]*?\"Relation Name\": \"([^\"]+)\")?(?:[^{}\\[\\]]*?\"Index Name\": \"([^\"]+)\")?");
+
+      /** The plan captured for one statement template. */
+      public static class Plan {
+         public final String sql;
+         public final String callSite;
+         public final String action;
+         public final double millis;
+         public final String json;
+         public final String shape;
+         public final List<String> seqScans;
+         public final long capturedAt = System.currentTimeMillis();
+
+         Plan (String sql, String callSite, String action, double millis, String json) {
+            this.sql = sql;
+            this.callSite = callSite;
+            this.action = action;
+            this.millis = millis;
+            this.json = json;
+            StringBuilder shape = new StringBuilder();
+            List<String> seqScans = new ArrayList<String>();
+            java.util.regex.Matcher m = NODE.matcher(json);
+            while (m.find()){
+               shape.append(shape.length() == 0 ? "" : " > ").append(m.group(1));
+               if (m.group(2) != null)
+                  shape.append(" on ").append(m.group(2));
+               if (m.group(3) != null)
+                  shape.append(" using ").append(m.group(3));
+               if (m.group(1).equals("Seq Scan") && WATCHED.contains(m.group(2)))
+                  seqScans.add(m.group(2));
+            }//end while
+            this.shape = shape.toString();
+            this.seqScans = seqScans;
+         }
+      }//end Plan
+
+      private final ProfNetwork esql;
+      private final long thresholdNanos;
+      private final double sample;
+      private final java.util.concurrent.ThreadPoolExecutor worker;
+      // latest plan per template, oldest templates dropped first
+      private final Map<String, Plan> plans = new LinkedHashMap<String, Plan>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+         protected boolean removeEldestEntry (Map.Entry<String, Plan> eldest) {
+            return size() > KEEP;
+         }
+      };
+      final AtomicLong captured = new AtomicLong();
+      final AtomicLong dropped = new AtomicLong();
+
+      /**
+       * @param thresholdMs statements at least this slow are explained, 0 for none
+       * @param samplePercent share of the other statements explained, 0 for none
+       */
+      public PlanCapture (ProfNetwork esql, long thresholdMs, double samplePercent) {
+         this.esql = esql;
+         this.thresholdNanos = thresholdMs > 0 ? thresholdMs * 1000000L : Long.MAX_VALUE;
+         this.sample = samplePercent / 100;
+         // one background worker with up to 16 captures waiting; further ones are dropped
+         this.worker = new java.util.concurrent.ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(16), new java.util.concurrent.ThreadFactory() {
+               public Thread newThread (Runnable r) {
+                  Thread t = new Thread(r, "plan-capture");
+                  t.setDaemon(true);
+                  return t;
+               }
+            }, new java.util.concurrent.ThreadPoolExecutor.DiscardPolicy() {
+               public void rejectedExecution (Runnable r, java.util.concurrent.ThreadPoolExecutor e) {
+                  dropped.incrementAndGet();
+               }
+            });
+      }
+
+      /**
+       * Called for every recorded statement; queues the statement for
+       * capture when it is slow enough or sampled.
+       */
+      void offer (final String sql, final Object[] params, final long nanos, final String action) {
+         if (nanos < this.thresholdNanos && (this.sample <= 0 || java.util.concurrent.ThreadLocalRandom.current().nextDouble() >= this.sample))
+            return;
+         String text = sql.toLowerCase();
+         if (text.contains("nextval(") || text.contains("setval(") || text.trim().startsWith("explain"))
+            return;
+         final String callSite = callSite();
+         this.worker.execute(new Runnable() {
+               public void run () {
+                  capture(sql, params, nanos, action, callSite);
+               }
+            });
+      }//end offer
+
+      /**
+       * @return the first frame outside the helpers, where the statement
+       *         was issued from
+       */
+      static String callSite () {
+         for (StackTraceElement frame : new Throwable().getStackTrace()){
+            String cls = frame.getClassName();
+            if (cls.startsWith(ProfNetwork.class.getName() + "$QueryStats") || cls.startsWith(ProfNetwork.class.getName() + "$PlanCapture"))
+               continue;
+            if (cls.equals(ProfNetwork.class.getName()) && Character.isLowerCase(frame.getMethodName().charAt(0)))
+               continue;
+            return cls.substring(cls.lastIndexOf('.') + 1) + "." + frame.getMethodName() + ":" + frame.getLineNumber();
+         }//end for
+         return "?";
+      }//end callSite
+
+      private void capture (String sql, Object[] params, long nanos, String action, String callSite) {
+         try{
+            PooledConnection conn = this.esql._pool.borrow();
+            Connection connection = conn.getConnection();
+            String json;
+            try{
+               connection.setAutoCommit(false);
+               try{
+                  ResultSet rs = conn.prepare("EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) " + sql, params).executeQuery();
+                  StringBuilder plan = new StringBuilder();
+                  while (rs.next())
+                     plan.append(rs.getString(1));
+                  rs.close();
+                  json = plan.toString();
+               }finally{
+                  // ANALYZE really runs the statement
+                  connection.rollback();
+                  connection.setAutoCommit(true);
+               }//end try
+            }catch (SQLException e){
+               conn.failed(e);
+               throw e;
+            }finally{
+               this.esql._pool.release(conn);
+            }//end try
+            Plan plan = new Plan(sql, callSite, action, nanos / 1e6, json);
+            Plan previous;
+            synchronized (this.plans){
+               previous = this.plans.put(sql, plan);
+            }//end synchronized
+            this.captured.incrementAndGet();
+            if (!plan.seqScans.isEmpty())
+               QueryStats.log.println("Sequential scan on " + plan.seqScans + " at " + callSite + ": " + sql);
+            if (previous != null && !previous.shape.equals(plan.shape))
+               QueryStats.log.println("Plan changed at " + callSite + " (" + sql + "): " + previous.shape + " -> " + plan.shape);
+         }catch (SQLException e){
+            QueryStats.log.println("Warning - unable to explain " + sql + ": " + e.getMessage());
+         }//end try
+      }//end capture
+
+      /** @return the latest captured plan of each template, most recent last */
+      public List<Plan> getPlans () {
+         synchronized (this.plans){
+            return new ArrayList<Plan>(this.plans.values());
+         }//end synchronized
+      }
+
+      /** @return one line per captured plan: action, call site, time, seq scans, shape */
+      public String[] getSummary () {
+         List<String> lines = new ArrayList<String>();
+         for (Plan plan : getPlans())
+            lines.add(String.format("%s %s %.1f ms%s: %s [%s]", plan.action, plan.callSite, plan.millis,
+               plan.seqScans.isEmpty() ? "" : " SEQ SCAN " + plan.seqScans, plan.sql, plan.shape));
+         lines.add(this.captured.get() + " plans captured, " + this.dropped.get() + " dropped while busy");
+         return lines.toArray(new String[lines.size()]);
+      }//end getSummary
+   }//end PlanCapture
+
+   /**
+    * Latency histogram with eight buckets per power of two, so any recorded
+    * value is reported within 12.5% of its true value, over the whole range
+    * of a long.  Recording is lock free.
+    */
+   public static class LatencyHistogram {
+
+      private static final int SUB_BITS = 3;
+      private static final int SUB_COUNT = 1 << SUB_BITS;
+
+      private final java.util.concurrent.atomic.AtomicLongArray counts =
+         new java.util.concurrent.atomic.AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+      private final AtomicLong total = new AtomicLong();
+      private final AtomicLong sum = new AtomicLong();
+      private final AtomicLong max = new AtomicLong();
+
+      static int index (long value) {
+         if (value < SUB_COUNT)
+            return (int) Math.max(value, 0);
+         int exponent = 63 - Long.numberOfLeadingZeros(value);
+         int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+         return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+      }
+
+      /** @return the largest value that falls in the bucket */
+      static long highestIn (int index) {
+         if (index < SUB_COUNT)
+            return index;
+         int exponent = index / SUB_COUNT + SUB_BITS - 1;
+         long sub = index % SUB_COUNT;
+         return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+      }
+
+      public void record (long value) {
+         this.counts.incrementAndGet(index(value));
+         this.total.incrementAndGet();
+         this.sum.addAndGet(value);
+         long seen;
+         while (value > (seen = this.max.get()) && !this.max.compareAndSet(seen, value))
+            ;
+      }
+
+      public long getCount () { return this.total.get(); }
+      public long getMax () { return this.max.get(); }
+      public double getMean () {
+         long count = this.total.get();
+         return count == 0 ? 0 : (double) this.sum.get() / count;
+      }
+
+      /**
+       * @param percentile between 0 and 100
+       * @return the value below which that share of the recorded values fall
+       */
+      public long getValueAtPercentile (double percentile) {
+         long count = this.total.get();
+         if (count == 0)
+            return 0;
+         long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+         long seen = 0;
+         for (int i = 0; i < this.counts.length(); ++i){
+            seen += this.counts.get(i);
+            if (seen >= target)
+               return Math.min(highestIn(i), this.max.get());
+         }//end for
+         return this.max.get();
+      }//end getValueAtPercentile
+   }//end LatencyHistogram
+
+   /**
+    * Timings of the execute helpers, grouped by the menu action running on
+    * the calling thread.  Menu methods mark themselves with enter and exit;
+    * statements run outside any action are grouped under "-".  Statements
+    * slower than the slow query threshold are logged with their template,
+    * parameters and duration to the standard error of the process.
+    */
+   public static class QueryStats implements QueryStatsMBean {
+
+      private static final ThreadLocal<String> action = new ThreadLocal<String>();
+
+      // captured before Serve sends System.err to the sessions
+      static final PrintStream log = System.err;
+
+      /** Counters of one menu action. */
+      public static class ActionStats {
+         final LatencyHistogram micros = new LatencyHistogram();
+         final AtomicLong errors = new AtomicLong();
+         final AtomicLong rows = new AtomicLong();
+         final AtomicLong chars = new AtomicLong();
+      }
+
+      private final ConcurrentHashMap<String, ActionStats> actions =
+         new ConcurrentHashMap<String, ActionStats>();
+      private final AtomicLong slowQueries = new AtomicLong();
+      private volatile long slowQueryMillis;
+      private volatile PlanCapture plans = null;
+      private javax.management.ObjectName name = null;
+      // round trips avoided per action, kept by ProfNetwork.roundTripsSaved
+      private final Map<String, AtomicLong> roundTripsSaved;
+
+      /**
+       * @param slowQueryMillis statements at least this slow are logged, 0 or
+       *        less turns the log off
+       * @param roundTripsSaved the round trip counters shown in the summary
+       */
+      public QueryStats (long slowQueryMillis, Map<String, AtomicLong> roundTripsSaved) {
+         this.slowQueryMillis = slowQueryMillis;
+         this.roundTripsSaved = roundTripsSaved;
+      }
+
+      /**
+       * Marks the calling thread as running a menu action.
+       *
+       * @return the action it was running before, to pass to exit
+       */
+      public static String enter (String name) {
+         String outer = action.get();
+         action.set(name);
+         return outer;
+      }
+
+      /**
+       * Restores the action that was running before the matching enter.
+       */
+      public static void exit (String outer) {
+         action.set(outer);
+      }
+
+      /**
+       * Records one statement.
+       *
+       * @param sql the statement template
+       * @param params the values bound to it
+       * @param start System.nanoTime() before the statement was issued
+       * @param rows the rows returned or affected, negative when it failed
+       * @param chars characters of column values read, when known
+       */
+      public void record (String sql, Object[] params, long start, long rows, long chars) {
+         long nanos = System.nanoTime() - start;
+         String name = action.get();
+         ActionStats stats = stats(name == null ? "-" : name);
+         stats.micros.record(nanos / 1000);
+         if (rows < 0){
+            stats.errors.incrementAndGet();
+         }else{
+            stats.rows.addAndGet(rows);
+            stats.chars.addAndGet(chars);
+         }//end if
+         long threshold = this.slowQueryMillis;
+         if (threshold > 0 && nanos >= threshold * 1000000L){
+            this.slowQueries.incrementAndGet();
+            log.println(String.format("Slow query (%s, %.1f ms%s): %s %s", name == null ? "-" : name,
+               nanos / 1e6, rows < 0 ? ", failed" : ", " + rows + " rows", sql, describe(sql, params)));
+         }//end if
+         PlanCapture plans = this.plans;
+         if (plans != null && rows >= 0)
+            plans.offer(sql, params, nanos, name == null ? "-" : name);
+      }//end record
+
+      /** Turns on plan capture for the recorded statements. */
+      public void setPlanCapture (PlanCapture plans) {
+         this.plans = plans;
+      }
+
+      public String[] getPlans () {
+         PlanCapture plans = this.plans;
+         return plans == null ? new String[0] : plans.getSummary();
+      }
+
+      private ActionStats stats (String name) {
+         ActionStats stats = this.actions.get(name);
+         if (stats == null){
+            ActionStats fresh = new ActionStats();
+            stats = this.actions.putIfAbsent(name, fresh);
+            if (stats == null)
+               stats = fresh;
+         }//end if
+         return stats;
+      }//end stats
+
+      /**
+       * Formats the parameters for the slow query log, leaving out the
+       * values of statements that touch passwords.
+       */
+      static String describe (String sql, Object[] params) {
+         if (params.length == 0)
+            return "";
+         if (sql.toLowerCase().contains("password"))
+            return "[" + params.length + " parameters hidden]";
+         StringBuilder out = new StringBuilder("[");
+         for (int i = 0; i < params.length; ++i){
+            String value = String.valueOf(params[i]);
+            if (value.length() > 64)
+               value = value.substring(0, 64) + "...";
+            out.append(i == 0 ? "" : ", ").append(value);
+         }//end for
+         return out.append(']').toString();
+      }//end describe
+
+      /** @return the counters of each action, by name */
+      public Map<String, ActionStats> getActions () {
+         return new TreeMap<String, ActionStats>(this.actions);
+      }
+
+      public String[] getSummary () {
+         List<String> lines = new ArrayList<String>();
+         lines.add(String.format("%-22s %8s %6s %9s %9s %9s %9s %10s %12s",
+            "action", "calls", "errors", "p50 ms", "p90 ms", "p99 ms", "max ms", "rows", "chars"));
+         for (Map.Entry<String, ActionStats> entry : getActions().entrySet()){
+            ActionStats stats = entry.getValue();
+            LatencyHistogram micros = stats.micros;
+            lines.add(String.format("%-22s %8d %6d %9.2f %9.2f %9.2f %9.2f %10d %12d",
+               entry.getKey(), micros.getCount(), stats.errors.get(),
+               micros.getValueAtPercentile(50) / 1e3, micros.getValueAtPercentile(90) / 1e3,
+               micros.getValueAtPercentile(99) / 1e3, micros.getMax() / 1e3,
+               stats.rows.get(), stats.chars.get()));
+         }//end for
+         lines.add(this.slowQueries.get() + " statements over the slow query threshold of " + this.slowQueryMillis + " ms");
+         StringBuilder saved = new StringBuilder();
+         for (Map.Entry<String, AtomicLong> entry : new TreeMap<String, AtomicLong>(this.roundTripsSaved).entrySet())
+            saved.append(saved.length() == 0 ? "" : ", ").append(entry.getKey()).append(' ').append(entry.getValue().get());
+         lines.add("round trips saved: " + (saved.length() == 0 ? "none" : saved.toString()));
+         return lines.toArray(new String[lines.size()]);
+      }//end getSummary
+
+      public long getSlowQueryMillis () { return this.slowQueryMillis; }
+      public void setSlowQueryMillis (long millis) { this.slowQueryMillis = millis; }
+      public long getSlowQueries () { return this.slowQueries.get(); }
+
+      public void reset () {
+         this.actions.clear();
+         this.slowQueries.set(0);
+         this.roundTripsSaved.clear();
+      }
+
+      /**
+       * Registers the stats on the platform MBean server, leaving a warning
+       * when that is not possible.
+       */
+      void register () {
+         try{
+            javax.management.ObjectName name = new javax.management.ObjectName("ProfNetwork:type=QueryStats");
+            java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.name = name;
+         }catch (Exception e){
+            System.err.println("Warning - query stats are not available over JMX: " + e.getMessage());
+         }//end try
+      }//end register
+
+      void unregister () {
+         if (this.name == null)
+            return;
+         try{
+            java.lang.management.ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+         }catch (Exception e){
+            // already gone
+         }//end try
+         this.name = null;
+      }//end unregister
+   }//end QueryStats
+
+   /**
+    * Streams a result set to standard out in one of several layouts:
+    * tab separated (the original layout), column aligned, CSV or JSON.  The
+    * layout comes from the profnetwork.output system property.  Each thread
+    * reuses one buffer, which is flushed as it fills, so memory stays flat
+    * however many rows are printed.  Time to first row and row counts are
+    * recorded for the last render on each thread and in total.
+    */
+   public static class ResultRenderer {
+
+      public enum Mode { TSV, ALIGNED, CSV, JSON }
+
+      private static final int FLUSH_AT = 8192;
+      // rows used to size the columns of the aligned layout
+      private static final int ALIGN_SAMPLE = 200;
+
+      private static volatile Mode mode = parseMode(System.getProperty("profnetwork.output", "tsv"));
+      private static final boolean timing = Boolean.getBoolean("profnetwork.output.timing");
+
+      private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+         protected StringBuilder initialValue () {
+            return new StringBuilder(FLUSH_AT * 2);
+         }
+      };
+      private static final ThreadLocal<long[]> lastRender = new ThreadLocal<long[]>() {
+         protected long[] initialValue () {
+            return new long[4];
+         }
+      };
+      private static final AtomicLong totalRows = new AtomicLong();
+      private static final AtomicLong totalRenders = new AtomicLong();
+
+      static Mode parseMode (String name) {
+         try{
+            return Mode.valueOf(name.trim().toUpperCase());
+         }catch (IllegalArgumentException e){
+            return Mode.TSV;
+         }//end try
+      }
+
+      public static void setMode (Mode newMode) { mode = newMode; }
+      public static Mode getMode () { return mode; }
+
+      /** @return rows printed by the last render on this thread */
+      public static long getLastRowCount () { return lastRender.get()[0]; }
+      /** @return nanoseconds from issuing the last query on this thread to its first row, or -1 */
+      public static long getLastTimeToFirstRowNanos () { return lastRender.get()[1]; }
+      /** @return nanoseconds from issuing the last query on this thread to its last row */
+      public static long getLastTotalNanos () { return lastRender.get()[2]; }
+      /** @return characters of column values read by the last render on this thread */
+      public static long getLastCharsFetched () { return lastRender.get()[3]; }
+      public static long getTotalRows () { return totalRows.get(); }
+      public static long getTotalRenders () { return totalRenders.get(); }
+
+      /**
+       * Prints every row of a result set.
+       *
+       * @param rs the result set, positioned before the first row
+       * @param start System.nanoTime() when the query was issued
+       * @return the number of rows printed
+       */
+      public static int render (ResultSet rs, long start) throws SQLException {
+         Mode layout = mode;
+         StringBuilder out = buffers.get();
+         out.setLength(0);
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         String[] names = new String[numCol];
+         for (int i = 0; i < numCol; ++i)
+            names[i] = rsmd.getColumnName(i + 1);
+
+         long firstRow = -1;
+         int rowCount = 0;
+         long chars = 0;
+         String[] row = new String[numCol];
+
+         if (layout == Mode.ALIGNED){
+            // size the columns from the first rows, then stream the rest
+            List<String[]> sample = new ArrayList<String[]>();
+            int[] widths = new int[numCol];
+            for (int i = 0; i < numCol; ++i)
+               widths[i] = names[i].length();
+            while (sample.size() < ALIGN_SAMPLE && rs.next()){
+               if (firstRow < 0)
+                  firstRow = System.nanoTime() - start;
+               String[] values = new String[numCol];
+               for (int i = 0; i < numCol; ++i){
+                  values[i] = String.valueOf(rs.getString(i + 1));
+                  chars += values[i].length();
+                  widths[i] = Math.max(widths[i], values[i].length());
+               }//end for
+               sample.add(values);
+            }//end while
+            if (!sample.isEmpty()){
+               appendAligned(out, names, widths);
+               for (int i = 0; i < numCol; ++i){
+                  pad(out, "", widths[i], '-');
+                  out.append(i + 1 < numCol ? "-+-" : "\n");
+               }//end for
+            }//end if
+            for (String[] values : sample){
+               appendAligned(out, values, widths);
+               ++rowCount;
+            }//end for
+            sample = null;
+            while (rs.next()){
+               for (int i = 0; i < numCol; ++i){
+                  row[i] = String.valueOf(rs.getString(i + 1));
+                  chars += row[i].length();
+               }//end for
+               appendAligned(out, row, widths);
+               ++rowCount;
+               flushIfFull(out);
+            }//end while
+         }else{
+            while (rs.next()){
+               if (rowCount == 0){
+                  firstRow = System.nanoTime() - start;
+                  appendHeader(out, layout, names);
+               }//end if
+               for (int i = 0; i < numCol; ++i){
+                  row[i] = rs.getString(i + 1);
+                  if (row[i] != null)
+                     chars += row[i].length();
+               }//end for
+               appendRow(out, layout, names, row, rowCount);
+               ++rowCount;
+               flushIfFull(out);
+            }//end while
+            if (layout == Mode.JSON)
+               out.append(rowCount == 0 ? "[]\n" : "\n]\n");
+         }//end if
+
+         long total = System.nanoTime() - start;
+         if (timing)
+            out.append(String.format("(%d rows, first row %.3f ms, total %.3f ms)%n",
+                                     rowCount, firstRow < 0 ? 0.0 : firstRow / 1e6, total / 1e6));
+         flush(out);
+
+         long[] last = lastRender.get();
+         last[0] = rowCount;
+         last[1] = firstRow;
+         last[2] = total;
+         last[3] = chars;
+         totalRows.addAndGet(rowCount);
+         totalRenders.incrementAndGet();
+         return rowCount;
+      }//end render
+
+      private static void appendHeader (StringBuilder out, Mode layout, String[] names) {
+         switch (layout){
+            case TSV:
+               for (String name : names)
+                  out.append(name).append('\t');
+               out.append('\n');
+               break;
+            case CSV:
+               for (int i = 0; i < names.length; ++i){
+                  if (i > 0)
+                     out.append(',');
+                  appendCsv(out, names[i]);
+               }//end for
+               out.append('\n');
+               break;
+            case JSON:
+               out.append("[\n");
+               break;
+            default:
+               break;
+         }
+      }//end appendHeader
+
+      private static void appendRow (StringBuilder out, Mode layout, String[] names, String[] row, int index) {
+         switch (layout){
+            case CSV:
+               for (int i = 0; i < row.length; ++i){
+                  if (i > 0)
+                     out.append(',');
+                  if (row[i] != null)
+                     appendCsv(out, row[i]);
+               }//end for
+               out.append('\n');
+               break;
+            case JSON:
+               if (index > 0)
+                  out.append(",\n");
+               out.append('{');
+               for (int i = 0; i < row.length; ++i){
+                  if (i > 0)
+                     out.append(", ");
+                  appendJson(out, names[i]);
+                  out.append(": ");
+                  if (row[i] == null)
+                     out.append("null");
+                  else
+                     appendJson(out, row[i]);
+               }//end for
+               out.append('}');
+               break;
+            default:
+               for (String value : row)
+                  out.append(value).append('\t');
+               out.append('\n');
+               break;
+         }
+      }//end appendRow
+
+      private static void appendAligned (StringBuilder out, String[] values, int[] widths) {
+         for (int i = 0; i < values.length; ++i){
+            pad(out, values[i], widths[i], ' ');
+            out.append(i + 1 < values.length ? " | " : "\n");
+         }//end for
+      }
+
+      private static void pad (StringBuilder out, String value, int width, char fill) {
+         out.append(value);
+         for (int i = value.length(); i < width; ++i)
+            out.append(fill);
+      }
+
+      private static void appendCsv (StringBuilder out, String value) {
+         boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                         || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+         if (!quote){
+            out.append(value);
+            return;
+         }//end if
+         out.append('"');
+         for (int i = 0; i < value.length(); ++i){
+            char c = value.charAt(i);
+            if (c == '"')
+               out.append('"');
+            out.append(c);
+         }//end for
+         out.append('"');
+      }//end appendCsv
+
+      private static void appendJson (StringBuilder out, String value) {
+         out.append('"');
+         for (int i = 0; i < value.length(); ++i){
+            char c = value.charAt(i);
+            switch (c){
+               case '"': out.append("\\\""); break;
+               case '\\': out.append("\\\\"); break;
+               case '\n': out.append("\\n"); break;
+               case '\r': out.append("\\r"); break;
+               case '\t': out.append("\\t"); break;
+               default:
+                  if (c < 0x20)
+                     out.append(String.format("\\u%04x", (int) c));
+                  else
+                     out.append(c);
+            }
+         }//end for
+         out.append('"');
+      }//end appendJson
+
+      private static void flushIfFull (StringBuilder out) {
+         if (out.length() >= FLUSH_AT)
+            flush(out);
+      }
+
+      private static void flush (StringBuilder out) {
+         PrintStream stream = out();
+         stream.print(out);
+         stream.flush();
+         out.setLength(0);
+      }
+   }//end ResultRenderer
+
+   /**
+    * Query result stored column by column.  INTEGER and SMALLINT columns are
+    * kept in int arrays, BIGINT columns in long arrays, DATE and TIMESTAMP
+    * columns as epoch microseconds in long arrays, and everything else as
+    * strings.  Nulls are tracked in a bit set per column.  Mailbox pages are
+    * read this way.
+    */
+   public static class ColumnarResult {
+
+      private static final int TEXT = 0, INT = 1, LONG = 2, TIME = 3;
+
+      private final String[] names;
+      private final int[] kinds;
+      private final Object[] columns;
+      private final BitSet[] nulls;
+      private int rows = 0;
+      private int capacity = 16;
+
+      ColumnarResult (ResultSetMetaData rsmd) throws SQLException {
+         int numCol = rsmd.getColumnCount();
+         this.names = new String[numCol];
+         this.kinds = new int[numCol];
+         this.columns = new Object[numCol];
+         this.nulls = new BitSet[numCol];
+         for (int i = 0; i < numCol; ++i){
+            this.names[i] = rsmd.getColumnName(i + 1);
+            switch (rsmd.getColumnType(i + 1)){
+               case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+                  this.kinds[i] = INT;
+                  this.columns[i] = new int[this.capacity];
+                  break;
+               case Types.BIGINT:
+                  this.kinds[i] = LONG;
+                  this.columns[i] = new long[this.capacity];
+                  break;
+               case Types.DATE: case Types.TIMESTAMP:
+                  this.kinds[i] = TIME;
+                  this.columns[i] = new long[this.capacity];
+                  break;
+               default:
+                  this.kinds[i] = TEXT;
+                  this.columns[i] = new String[this.capacity];
+                  break;
+            }
+            this.nulls[i] = new BitSet();
+         }//end for
+      }
+
+      void add (ResultSet rs) throws SQLException {
+         if (this.rows == this.capacity)
+            grow();
+         for (int i = 0; i < this.columns.length; ++i){
+            switch (this.kinds[i]){
+               case INT:
+                  ((int[]) this.columns[i])[this.rows] = rs.getInt(i + 1);
+                  break;
+               case LONG:
+                  ((long[]) this.columns[i])[this.rows] = rs.getLong(i + 1);
+                  break;
+               case TIME:
+                  // microseconds, the precision of a PostgreSQL timestamp
+                  Timestamp time = rs.getTimestamp(i + 1);
+                  ((long[]) this.columns[i])[this.rows] = time == null ? 0 :
+                     Math.floorDiv(time.getTime(), 1000L) * 1000000L + time.getNanos() / 1000;
+                  break;
+               default:
+                  ((String[]) this.columns[i])[this.rows] = rs.getString(i + 1);
+                  break;
+            }
+            if (rs.wasNull())
+               this.nulls[i].set(this.rows);
+         }//end for
+         ++this.rows;
+      }//end add
+
+      private void grow () {
+         this.capacity *= 2;
+         for (int i = 0; i < this.columns.length; ++i){
+            Object column = this.columns[i];
+            if (column instanceof int[])
+               this.columns[i] = Arrays.copyOf((int[]) column, this.capacity);
+            else if (column instanceof long[])
+               this.columns[i] = Arrays.copyOf((long[]) column, this.capacity);
+            else
+               this.columns[i] = Arrays.copyOf((String[]) column, this.capacity);
+         }//end for
+      }//end grow
+
+      public int getRowCount () { return this.rows; }
+      public int getColumnCount () { return this.names.length; }
+      public String getColumnName (int col) { return this.names[col]; }
+
+      /** @return the zero based index of a column, or -1 */
+      public int columnIndex (String name) {
+         for (int i = 0; i < this.names.length; ++i)
+            if (this.names[i].equalsIgnoreCase(name))
+               return i;
+         return -1;
+      }
+
+      public boolean isNull (int row, int col) {
+         return this.nulls[col].get(row);
+      }
+
+      public int getInt (int row, int col) {
+         if (this.kinds[col] == INT)
+            return ((int[]) this.columns[col])[row];
+         return (int) getLong(row, col);
+      }
+
+      public long getLong (int row, int col) {
+         switch (this.kinds[col]){
+            case INT: return ((int[]) this.columns[col])[row];
+            case LONG: return ((long[]) this.columns[col])[row];
+            case TIME: return Math.floorDiv(((long[]) this.columns[col])[row], 1000L);
+            default:
+               String value = ((String[]) this.columns[col])[row];
+               return value == null ? 0 : Long.parseLong(value.trim());
+         }
+      }
+
+      /** @return a DATE or TIMESTAMP column as epoch milliseconds */
+      public long getTimeMillis (int row, int col) {
+         return getLong(row, col);
+      }
+
+      /** @return a DATE or TIMESTAMP column to the microsecond, or null */
+      public Timestamp getTimestamp (int row, int col) {
+         if (isNull(row, col))
+            return null;
+         long micros = ((long[]) this.columns[col])[row];
+         Timestamp time = new Timestamp(Math.floorDiv(micros, 1000000L) * 1000L);
+         time.setNanos((int) Math.floorMod(micros, 1000000L) * 1000);
+         return time;
+      }
+
+      public String getString (int row, int col) {
+         if (isNull(row, col))
+            return null;
+         switch (this.kinds[col]){
+            case INT: return String.valueOf(((int[]) this.columns[col])[row]);
+            case LONG: return String.valueOf(((long[]) this.columns[col])[row]);
+            case TIME: String time = getTimestamp(row, col).toString();
+                       // as the driver prints it, without a zero fraction
+                       return time.endsWith(".0") ? time.substring(0, time.length() - 2) : time;
+            default: return ((String[]) this.columns[col])[row];
+         }
+      }
+   }//end ColumnarResult
+
+   /**
+    * One page at a time view of a message listing, ordered by sendTime then
+    * msgId.  Pages are fetched with keyset pagination: the next page starts
+    * after the last (sendTime, msgId) shown and the previous page ends
+    * before the first one, so every page costs one index range scan no
+    * matter how many messages come before it.  The page size comes from
+    * the profnetwork.pageSize system property.
+    */
+   public static class Mailbox {
+
+      static final int PAGE_SIZE = Integer.getInteger("profnetwork.pageSize", 20);
+
+      private final ProfNetwork esql;
+      private final String columns;
+      private final String where;
+      private final String userId;
+      private String[] header;
+      private Timestamp firstTime, lastTime;
+      private int firstId, lastId;
+      private boolean hasNext = false;
+      private boolean hasPrevious = false;
+
+      /**
+       * @param columns the select list, which must include msgId and sendTime
+       * @param where the filter, with a single ? for the user
+       * @param userId the user the listing belongs to
+       */
+      public Mailbox (ProfNetwork esql, String columns, String where, String userId) {
+         this.esql = esql;
+         this.columns = columns;
+         this.where = where;
+         this.userId = userId;
+      }
+
+      /** @return the number of messages on the first page */
+      public int first () throws SQLException {
+         return load(true, null, 0);
+      }
+
+      /** @return the number of messages on the next page */
+      public int next () throws SQLException {
+         return load(true, this.lastTime, this.lastId);
+      }
+
+      /** @return the number of messages on the previous page */
+      public int previous () throws SQLException {
+         return load(false, this.firstTime, this.firstId);
+      }
+
+      public boolean hasNext () { return this.hasNext; }
+      public boolean hasPrevious () { return this.hasPrevious; }
+
+      /**
+       * Prints the paging options that apply, numbered from the given option.
+       */
+      public void printPageOptions (int option) {
+         if (this.hasNext)
+            out().println(option + ". Next Page");
+         if (this.hasPrevious)
+            out().println((option + 1) + ". Previous Page");
+      }
+
+      /**
+       * Turns the page when the input picked one of the paging options.
+       *
+       * @return false when the input was not a paging option
+       */
+      public boolean turnPage (String input, int option) throws SQLException {
+         if (this.hasNext && input.equals(String.valueOf(option)))
+            next();
+         else if (this.hasPrevious && input.equals(String.valueOf(option + 1)))
+            previous();
+         else
+            return false;
+         return true;
+      }
+
+      private int load (final boolean forward, Timestamp time, int id) throws SQLException {
+         StringBuilder sql = new StringBuilder("Select ").append(this.columns)
+            .append(" from message where ").append(this.where);
+         List<Object> params = new ArrayList<Object>();
+         params.add(this.userId);
+         if (time != null){
+            sql.append(forward ? " and (sendTime, msgId) > (?, ?)" : " and (sendTime, msgId) < (?, ?)");
+            params.add(time);
+            params.add(id);
+         }//end if
+         sql.append(forward ? " Order by sendTime, msgId" : " Order by sendTime desc, msgId desc");
+         sql.append(" limit ?");
+         // one extra row tells whether there is another page
+         params.add(PAGE_SIZE + 1);
+
+         // the page keys stay in the primitive sendTime and msgId columns
+         ColumnarResult page = this.esql.queryColumns(sql.toString(), params.toArray());
+         boolean more = page.getRowCount() > PAGE_SIZE;
+         int count = Math.min(page.getRowCount(), PAGE_SIZE);
+         if (count == 0)
+            return 0;
+         if (this.header == null){
+            this.header = new String[page.getColumnCount()];
+            for (int i = 0; i < this.header.length; ++i)
+               this.header[i] = page.getColumnName(i);
+         }//end if
+         // backward pages come newest first; show them oldest first
+         int first = forward ? 0 : count - 1, last = forward ? count - 1 : 0;
+         int timeCol = page.columnIndex("sendTime"), idCol = page.columnIndex("msgId");
+         this.firstTime = page.getTimestamp(first, timeCol);
+         this.firstId = page.getInt(first, idCol);
+         this.lastTime = page.getTimestamp(last, timeCol);
+         this.lastId = page.getInt(last, idCol);
+         if (forward){
+            this.hasNext = more;
+            this.hasPrevious = time != null;
+         }else{
+            this.hasPrevious = more;
+            this.hasNext = true;
+         }//end if
+         List<String[]> rows = new ArrayList<String[]>(count);
+         for (int r = first; r != last + (forward ? 1 : -1); r += forward ? 1 : -1){
+            String[] row = new String[this.header.length];
+            for (int i = 0; i < row.length; ++i)
+               row[i] = page.getString(r, i);
+            rows.add(row);
+         }//end for
+         printRows(this.header, rows);
+         return count;
+      }//end load
+   }//end Mailbox
+
+   /**
+    * Streams CSV files into the tables.  Each file must start with a header
+    * naming the columns it holds.  Rows go through COPY FROM STDIN when the
+    * driver on the classpath has the copy API (looked up reflectively, since
+    * older drivers such as pg73jdbc3 do not), and otherwise through batched
+    * multi-row inserts committed once per file.  Secondary indexes on the
+    * table can be dropped for the load and rebuilt once it finishes.
+    */
+   public static class BulkLoader {
+
+      static final List<String> TABLES = Arrays.asList(
+         "usr", "connection_usr", "message", "work_expr", "educational_details");
+
+      // rows per multi-row insert when COPY is not available.
+      static final int BATCH_ROWS = Integer.getInteger("profnetwork.load.batchRows", 500);
+
+      // rows between progress reports.
+      static final long PROGRESS_ROWS = Long.getLong("profnetwork.load.progressRows", 100000L);
+
+      private final ProfNetwork esql;
+      private final boolean deferIndexes;
+
+      public BulkLoader (ProfNetwork esql, boolean deferIndexes) {
+         this.esql = esql;
+         this.deferIndexes = deferIndexes;
+      }
+
+      /**
+       * Loads one CSV file into a table.
+       *
+       * @param table one of TABLES
+       * @param file a CSV file with a header line
+       * @return the number of rows loaded
+       * @throws java.sql.SQLException when the load failed; nothing from the
+       *         file is kept in that case
+       */
+      public long load (String table, File file) throws SQLException, IOException {
+         table = table.toLowerCase();
+         if (!TABLES.contains(table))
+            throw new IllegalArgumentException("Cannot load into " + table + ", expected one of " + TABLES);
+         List<String> indexes = this.deferIndexes ? dropIndexes(table) : new ArrayList<String>();
+         long start = System.nanoTime();
+         long rows;
+         try{
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try{
+               String header = reader.readLine();
+               if (header == null)
+                  return 0;
+               List<String> columns = parseLine(header);
+               for (String column : columns){
+                  if (!column.matches("[A-Za-z_][A-Za-z0-9_]*"))
+                     throw new IllegalArgumentException("Bad column name in " + file + ": " + column);
+               }//end for
+               Progress progress = new Progress(table, start);
+               rows = copyAvailable()
+                  ? copy(table, columns, reader, progress)
+                  : insert(table, columns, reader, progress);
+            }finally{
+               reader.close();
+            }//end try
+         }finally{
+            for (String index : indexes)
+               this.esql.executeUpdate(index);
+         }//end try
+         if (table.equals("connection_usr") && this.esql.hasConnectionLog()){
+            // the trigger logged every loaded row; graphs reload from the table instead
+            this.esql.trimConnectionLog(this.esql.queryForLong("Select txid_snapshot_xmin(txid_current_snapshot())"));
+         }//end if
+         if (table.equals("message")){
+            // the file brings its own msgIds; MessageIdAllocator must hand out later ones
+            this.esql.ensureMessageSequence();
+         }//end if
+         long elapsed = System.nanoTime() - start;
+         System.out.println(String.format("%s: loaded %d rows in %.1f s (%.0f rows/s)%s",
+            table, rows, elapsed / 1e9, rows * 1e9 / Math.max(elapsed, 1),
+            indexes.isEmpty() ? "" : ", rebuilt " + indexes.size() + " indexes"));
+         return rows;
+      }//end load
+
+      /**
+       * Drops the table's indexes that do not back a constraint.
+       *
+       * @return the statements that recreate them
+       */
+      private List<String> dropIndexes (String table) throws SQLException {
+         List<String[]> indexes = this.esql.query(
+            "Select indexname, indexdef from pg_indexes where tablename = ? and indexname not in (Select conname from pg_constraint)",
+            new RowMapper<String[]>() {
+               public String[] mapRow (ResultSet rs, int rowNum) throws SQLException {
+                  return new String[]{ rs.getString(1), rs.getString(2) };
+               }
+            }, table);
+         List<String> definitions = new ArrayList<String>();
+         for (String[] index : indexes){
+            this.esql.executeUpdate("DROP INDEX \"" + index[0].replace("\"", "\"\"") + "\"");
+            definitions.add(index[1]);
+         }//end for
+         return definitions;
+      }//end dropIndexes
+
+      private static boolean copyAvailable () {
+         try{
+            Class.forName("org.postgresql.copy.CopyManager");
+            return true;
+         }catch (ClassNotFoundException e){
+            return false;
+         }//end try
+      }//end copyAvailable
+
+      /**
+       * Streams the rest of the file through COPY FROM STDIN.
+       */
+      private long copy (String table, List<String> columns, final BufferedReader reader, final Progress progress) throws SQLException {
+         PooledConnection conn = this.esql._pool.borrow();
+         try{
+            Class<?> manager = Class.forName("org.postgresql.copy.CopyManager");
+            Object copier = manager.getConstructor(Class.forName("org.postgresql.core.BaseConnection"))
+               .newInstance(conn.getConnection());
+            // counts lines as they are handed to the driver, for progress
+            java.io.Reader counting = new java.io.Reader() {
+                  public int read (char[] buf, int off, int len) throws IOException {
+                     int n = reader.read(buf, off, len);
+                     for (int i = off; i < off + n; ++i){
+                        if (buf[i] == '\n')
+                           progress.row();
+                     }//end for
+                     return n;
+                  }
+                  public void close () throws IOException {
+                     reader.close();
+                  }
+               };
+            String sql = "COPY " + table + " (" + join(columns) + ") FROM STDIN WITH CSV";
+            return (Long) manager.getMethod("copyIn", String.class, java.io.Reader.class).invoke(copier, sql, counting);
+         }catch (java.lang.reflect.InvocationTargetException e){
+            SQLException failure = e.getCause() instanceof SQLException
+               ? (SQLException) e.getCause() : new SQLException(String.valueOf(e.getCause()));
+            conn.failed(failure);
+            throw failure;
+         }catch (ReflectiveOperationException e){
+            throw new SQLException("COPY is not usable with this driver: " + e);
+         }finally{
+            this.esql._pool.release(conn);
+         }//end try
+      }//end copy
+
+      /**
+       * Inserts the rest of the file BATCH_ROWS rows per statement, in one
+       * transaction.
+       */
+      private long insert (String table, List<String> columns, BufferedReader reader, Progress progress) throws SQLException, IOException {
+         PooledConnection conn = this.esql._pool.borrow();
+         Connection connection = conn.getConnection();
+         String prefix = "Insert into " + table + " (" + join(columns) + ") Values";
+         StringBuilder tuple = new StringBuilder("(");
+         for (int i = 0; i < columns.size(); ++i)
+            tuple.append(i == 0 ? "?" : ", ?");
+         tuple.append(")");
+         String fullBatch = batchSql(prefix, tuple, BATCH_ROWS);
+         List<String> values = new ArrayList<String>();
+         long rows = 0;
+         try{
+            connection.setAutoCommit(false);
+            String line;
+            while ((line = readRecord(reader)) != null){
+               List<String> fields = parseLine(line);
+               if (fields.size() != columns.size())
+                  throw new SQLException(table + " row " + (rows + 1) + " has " + fields.size() + " fields, expected " + columns.size());
+               values.addAll(fields);
+               if (values.size() == BATCH_ROWS * columns.size()){
+                  rows += flush(conn, fullBatch, values);
+                  progress.rows(BATCH_ROWS);
+               }//end if
+            }//end while
+            if (!values.isEmpty()){
+               int left = values.size() / columns.size();
+               rows += flush(conn, batchSql(prefix, tuple, left), values);
+               progress.rows(left);
+            }//end if
+            connection.commit();
+            return rows;
+         }catch (SQLException e){
+            conn.failed(e);
+            if (!conn.broken)
+               connection.rollback();
+            throw e;
+         }finally{
+            if (!conn.broken)
+               connection.setAutoCommit(true);
+            this.esql._pool.release(conn);
+         }//end try
+      }//end insert
+
+      private static String batchSql (String prefix, CharSequence tuple, int rows) {
+         StringBuilder sql = new StringBuilder(prefix.length() + rows * (tuple.length() + 1));
+         sql.append(prefix);
+         for (int i = 0; i < rows; ++i)
+            sql.append(i == 0 ? "" : ",").append(tuple);
+         return sql.toString();
+      }//end batchSql
+
+      /**
+       * Binds the values as untyped literals, so that the server converts
+       * them to each column's type, and runs the batch.
+       */
+      private static int flush (PooledConnection conn, String sql, List<String> values) throws SQLException {
+         PreparedStatement stmt = conn.prepare(sql);
+         for (int i = 0; i < values.size(); ++i){
+            String value = values.get(i);
+            if (value == null)
+               stmt.setNull(i + 1, Types.VARCHAR);
+            else
+               stmt.setObject(i + 1, value, Types.OTHER);
+         }//end for
+         values.clear();
+         return stmt.executeUpdate();
+      }//end flush
+
+      /**
+       * Reads one CSV record, joining lines while a quoted field is open.
+       */
+      static String readRecord (BufferedReader reader) throws IOException {
+         String line = reader.readLine();
+         if (line == null)
+            return null;
+         StringBuilder record = new StringBuilder(line);
+         while (quotes(record) % 2 != 0){
+            String more = reader.readLine();
+            if (more == null)
+               break;
+            record.append('\n').append(more);
+         }//end while
+         return record.toString();
+      }//end readRecord
+
+      private static int quotes (CharSequence text) {
+         int count = 0;
+         for (int i = 0; i < text.length(); ++i){
+            if (text.charAt(i) == '"')
+               ++count;
+         }//end for
+         return count;
+      }//end quotes
+
+      /**
+       * Splits a CSV record.  An empty unquoted field is NULL, as with COPY.
+       */
+      static List<String> parseLine (String line) {
+         List<String> fields = new ArrayList<String>();
+         StringBuilder field = new StringBuilder();
+         boolean quoted = false, wasQuoted = false;
+         for (int i = 0; i < line.length(); ++i){
+            char c = line.charAt(i);
+            if (quoted){
+               if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+                  field.append('"');
+                  ++i;
+               }else if (c == '"'){
+                  quoted = false;
+               }else{
+                  field.append(c);
+               }//end if
+            }else if (c == '"'){
+               quoted = wasQuoted = true;
+            }else if (c == ','){
+               fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+               field.setLength(0);
+               wasQuoted = false;
+            }else{
+               field.append(c);
+            }//end if
+         }//end for
+         fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+         return fields;
+      }//end parseLine
+
+      private static String join (List<String> columns) {
+         StringBuilder out = new StringBuilder();
+         for (String column : columns)
+            out.append(out.length() == 0 ? "" : ", ").append(column);
+         return out.toString();
+      }//end join
+
+      /** Prints the row count and rate every PROGRESS_ROWS rows. */
+      private static class Progress {
+         private final String table;
+         private final long start;
+         private long rows = 0;
+
+         Progress (String table, long start) {
+            this.table = table;
+            this.start = start;
+         }
+
+         void row () {
+            rows(1);
+         }
+
+         void rows (long count) {
+            long before = this.rows / PROGRESS_ROWS;
+            this.rows += count;
+            if (this.rows / PROGRESS_ROWS != before){
+               long elapsed = System.nanoTime() - this.start;
+               System.out.println(String.format("%s: %d rows (%.0f rows/s)",
+                  this.table, this.rows, this.rows * 1e9 / Math.max(elapsed, 1)));
+            }//end if
+         }
+      }//end Progress
+   }//end BulkLoader
+
+   /**
+    * Micro benchmark of the data access helpers and of composite menu
+    * actions, run against the database given on the command line.  Each
+    * operation is warmed up, then timed call by call for a fixed time over
+    * a sample of existing users; the report gives ops/s, p50 and p99
+    * latency and bytes allocated per call by the calling thread.  Output
+    * printed by the operations is discarded while they run.
+    */
+   public static class Benchmark {
+
+      /** One benchmarked operation; i picks the sample to use. */
+      interface Operation {
+         void run (int i) throws Exception;
+      }
+
+      static final long WARMUP_MS = Long.getLong("profnetwork.bench.warmupMs", 2000L);
+      static final long MEASURE_MS = Long.getLong("profnetwork.bench.measureMs", 5000L);
+      static final int USERS = Integer.getInteger("profnetwork.bench.users", 100);
+
+      private final ProfNetwork esql;
+      private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+      private String[] users;
+      private String[][] strangers;
+
+      public Benchmark (ProfNetwork esql) {
+         this.esql = esql;
+      }
+
+      /**
+       * Samples the users to work on and registers the operations.
+       */
+      private void setUp () throws SQLException {
+         RowMapper<String> userId = new RowMapper<String>() {
+               public String mapRow (ResultSet rs, int rowNum) throws SQLException {
+                  return rs.getString(1);
+               }
+            };
+         List<String> sample = this.esql.query("Select userId from usr order by random() limit ?", userId, USERS);
+         if (sample.size() < 2)
+            throw new SQLException("Benchmark needs at least two users in usr");
+         this.users = sample.toArray(new String[sample.size()]);
+
+         // pairs with no connection row either way, so SendRequest can insert
+         List<String[]> pairs = new ArrayList<String[]>();
+         for (int i = 0; i < this.users.length; ++i){
+            String a = this.users[i], b = this.users[(i + 1) % this.users.length];
+            if (!this.esql.exists("Select 1 from connection_usr where (userId = ? and connectionId = ?) or (userId = ? and connectionId = ?)", a, b, b, a))
+               pairs.add(new String[]{ a, b });
+         }//end for
+         this.strangers = pairs.toArray(new String[pairs.size()][]);
+
+         final ProfNetwork esql = this.esql;
+         this.operations.put("executeQueryAndPrintResult", new Operation() {
+               public void run (int i) throws Exception {
+                  esql.executeQueryAndPrintResult("Select userId, name, email, dateOfBirth from usr where userId = ?", user(i));
+               }
+            });
+         this.operations.put("executeQueryAndReturnResult", new Operation() {
+               public void run (int i) throws Exception {
+                  esql.executeQueryAndReturnResult("Select userId, connectionId, status from connection_usr where userId = ? or connectionId = ?", user(i), user(i));
+               }
+            });
+         this.operations.put("executeQuery", new Operation() {
+               public void run (int i) throws Exception {
+                  esql.executeQuery("Select msgId from message where senderId = ?", user(i));
+               }
+            });
+         this.operations.put("ViewProfile (cached)", new Operation() {
+               public void run (int i) throws Exception {
+                  ProfileLoader.load(esql, user(i), user(i + 1));
+               }
+            });
+         this.operations.put("ViewProfile (uncached)", new Operation() {
+               public void run (int i) throws Exception {
+                  esql.getProfileCache().invalidate(user(i + 1));
+                  ProfileLoader.load(esql, user(i), user(i + 1));
+               }
+            });
+         if (this.strangers.length > 0){
+            final String[][] strangers = this.strangers;
+            this.operations.put("SendRequest (+ undo)", new Operation() {
+                  public void run (int i) throws Exception {
+                     String[] pair = strangers[i % strangers.length];
+                     SendRequest(esql, pair[0], pair[1]);
+                     esql.executeUpdate("Delete from connection_usr where userId = ? and connectionId = ? and status = 'Request'", pair[0], pair[1]);
+                  }
+               });
+         }//end if
+      }//end setUp
+
+      private String user (int i) {
+         return this.users[i % this.users.length];
+      }
+
+      /**
+       * Runs every operation and prints the report to the given stream.
+       */
+      public void run (PrintStream report) throws Exception {
+         setUp();
+         report.println(String.format("%d users sampled, warmup %d ms, measurement %d ms per operation",
+            this.users.length, WARMUP_MS, MEASURE_MS));
+         report.println(String.format("%-30s %12s %10s %10s %12s", "operation", "ops/s", "p50 us", "p99 us", "bytes/op"));
+         PrintStream out = System.out;
+         PrintStream discard = new PrintStream(new OutputStream() {
+               public void write (int b) { }
+               public void write (byte[] b, int off, int len) { }
+            });
+         try{
+            System.setOut(discard);
+            for (Map.Entry<String, Operation> entry : this.operations.entrySet()){
+               Operation op = entry.getValue();
+               int i = 0;
+               long end = System.nanoTime() + WARMUP_MS * 1000000L;
+               while (System.nanoTime() < end)
+                  op.run(i++);
+
+               long[] times = new long[1024];
+               int count = 0;
+               long allocated = allocatedBytes();
+               long start = System.nanoTime();
+               end = start + MEASURE_MS * 1000000L;
+               long now = start;
+               while (now < end){
+                  op.run(i++);
+                  long after = System.nanoTime();
+                  if (count == times.length)
+                     times = Arrays.copyOf(times, count * 2);
+                  times[count++] = after - now;
+                  now = after;
+               }//end while
+               allocated = allocatedBytes() - allocated;
+               Arrays.sort(times, 0, count);
+               report.println(String.format("%-30s %12.1f %10.1f %10.1f %12s", entry.getKey(),
+                  count * 1e9 / (now - start),
+                  times[count / 2] / 1e3,
+                  times[Math.min(count - 1, (int) (count * 0.99))] / 1e3,
+                  allocated < 0 ? "n/a" : String.valueOf(allocated / count)));
+            }//end for
+         }finally{
+            System.setOut(out);
+         }//end try
+      }//end run
+
+      /**
+       * @return bytes allocated so far by the current thread, or -1 when
+       *         the JVM does not track it
+       */
+      private static long allocatedBytes () {
+         try{
+            Object threads = java.lang.management.ManagementFactory.getThreadMXBean();
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(threads))
+               return -1;
+            return (Long) type.getMethod("getThreadAllocatedBytes", long.class)
+               .invoke(threads, Thread.currentThread().getId());
+         }catch (Exception e){
+            return -1;
+         }//end try
+      }//end allocatedBytes
+   }//end Benchmark
+
+   /**
+    * Load generator that runs the real menu flows for simulated users.
+    * Each simulated user is a Session whose input is fed by the flow being
+    * run and whose output is discarded, so the flows exercise the same code
+    * and statements as a person at the terminal.  Flows come either from a
+    * script file, one flow name per line cycled by every user, or from the
+    * weighted mix in profnetwork.workload.mix.
+    *
+    * In closed loop mode each user runs a flow, then thinks for an
+    * exponentially distributed time with mean profnetwork.workload.thinkMs.
+    * With profnetwork.workload.rate set, flows arrive open loop as a Poisson
+    * process at that many per second and are run by the first free user;
+    * latency is then measured from the intended arrival, so a backlog shows
+    * up in the percentiles instead of slowing the arrivals down.
+    *
+    * A flow counts as an error when its menu reported a failure on the
+    * session's error stream or asked for more input than its script gave.
+    */
+   public static class Workload {
+
+      static final String DEFAULT_MIX = "Search=20,FriendList=15,ViewProfile=15,ViewMessages=15,SendMessages=10," +
+                                        "LogIn=10,SendRequest=5,ActionRequest=5,AddEdu=3,UpdatePass=2";
+
+      /** A user of the dataset, as a simulated user logs in with it. */
+      static class Account {
+         final String userId;
+         final String password;
+
+         Account (String userId, String password) {
+            this.userId = userId;
+            this.password = password;
+         }
+      }
+
+      /** Input queued for a simulated user, read through the session. */
+      static class Feed extends BufferedReader {
+         private final LinkedList<String> lines = new LinkedList<String>();
+         boolean exhausted = false;
+
+         Feed () {
+            super(new StringReader(""), 1);
+         }
+
+         void set (String... input) {
+            this.lines.clear();
+            this.lines.addAll(Arrays.asList(input));
+            this.exhausted = false;
+         }
+
+         public String readLine () {
+            // the end of the input ends the flow, as a closed terminal would
+            String line = this.lines.poll();
+            if (line == null)
+               this.exhausted = true;
+            return line;
+         }
+      }//end Feed
+
+      /** One simulated user: a session, its input and the account it uses. */
+      class User {
+         final Feed feed = new Feed();
+         final Session session;
+         final Account account;
+         int step = 0;
+         // set when a menu reported an error during the current flow
+         boolean failed = false;
+         // whether the unread box had a message when ViewMessages started
+         boolean unread = false;
+
+         User (Account account) {
+            this.account = account;
+            this.session = new Session(esql, this.feed, discard, new PrintStream(new FlowErrors(this), true));
+            this.session.authorisedUser = account.userId;
+         }
+      }
+
+      private final ProfNetwork esql;
+      private final int users;
+      private final List<String> script;
+      private final List<String> flows = new ArrayList<String>();
+      private final double[] cumulative;
+      private final long durationMs = Long.getLong("profnetwork.workload.durationMs", 60 * 1000L);
+      private final long thinkMs = Long.getLong("profnetwork.workload.thinkMs", 1000L);
+      private final double rate = Double.parseDouble(System.getProperty("profnetwork.workload.rate", "0"));
+      private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+      private final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+      private final PrintStream discard = new PrintStream(new OutputStream() {
+            public void write (int b) { }
+            public void write (byte[] b, int off, int len) { }
+         });
+      private Account[] accounts;
+      private final ThreadLocal<User> user = new ThreadLocal<User>();
+      private final java.util.concurrent.atomic.AtomicInteger nextAccount = new java.util.concurrent.atomic.AtomicInteger();
+
+      /**
+       * @param users the number of simulated users
+       * @param script a file of flow names, or null for the weighted mix
+       */
+      public Workload (ProfNetwork esql, int users, File script) throws IOException {
+         this.esql = esql;
+         this.users = users;
+         this.script = script == null ? null : readScript(script);
+         String[] weights = System.getProperty("profnetwork.workload.mix", DEFAULT_MIX).split(",");
+         this.cumulative = new double[weights.length];
+         double total = 0;
+         for (int i = 0; i < weights.length; ++i){
+            String[] pair = weights[i].split("=");
+            String flow = pair[0].trim();
+            if (!isFlow(flow))
+               throw new IllegalArgumentException("Unknown flow in profnetwork.workload.mix: " + flow);
+            this.flows.add(flow);
+            total += Double.parseDouble(pair[1].trim());
+            this.cumulative[i] = total;
+         }//end for
+      }
+
+      private static List<String> readScript (File file) throws IOException {
+         List<String> flows = new ArrayList<String>();
+         BufferedReader reader = new BufferedReader(new FileReader(file));
+         try{
+            String line;
+            while ((line = reader.readLine()) != null){
+               line = line.trim();
+               if (line.isEmpty() || line.startsWith("#"))
+                  continue;
+               if (!isFlow(line))
+                  throw new IllegalArgumentException("Unknown flow in " + file + ": " + line);
+               flows.add(line);
+            }//end while
+         }finally{
+            reader.close();
+         }//end try
+         if (flows.isEmpty())
+            throw new IllegalArgumentException("No flows in " + file);
+         return flows;
+      }//end readScript
+
+      static boolean isFlow (String name) {
+         return Arrays.asList(DEFAULT_MIX.replaceAll("=\\d+", "").split(",")).contains(name);
+      }
+
+      /**
+       * Runs the workload for profnetwork.workload.durationMs and prints the
+       * report to the given stream.
+       */
+      public void run (PrintStream report) throws Exception {
+         List<Account> sample = this.esql.query("Select userId, password from usr order by random() limit ?",
+            new RowMapper<Account>() {
+               public Account mapRow (ResultSet rs, int rowNum) throws SQLException {
+                  return new Account(rs.getString(1).trim(), rs.getString(2).trim());
+               }
+            }, Math.max(this.users * 10, 100));
+         if (sample.size() < 2)
+            throw new SQLException("The workload needs at least two users in usr");
+         this.accounts = sample.toArray(new Account[sample.size()]);
+
+         report.println(String.format("%d users, %s, %d s%s", this.users,
+            this.rate > 0 ? "open loop at " + this.rate + " flows/s" : "closed loop, think time " + this.thinkMs + " ms",
+            this.durationMs / 1000, this.script == null ? "" : ", scripted"));
+         final long start = System.nanoTime();
+         final long end = start + this.durationMs * 1000000L;
+         java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(this.users);
+         try{
+            if (this.rate > 0){
+               // open loop: arrivals do not wait for earlier flows to finish
+               java.util.Random random = new java.util.Random();
+               long arrival = start;
+               while (true){
+                  arrival += (long) (-Math.log(1 - random.nextDouble()) / this.rate * 1e9);
+                  if (arrival >= end)
+                     break;
+                  long wait = arrival - System.nanoTime();
+                  if (wait > 0)
+                     TimeUnit.NANOSECONDS.sleep(wait);
+                  final long intended = arrival;
+                  pool.execute(new Runnable() {
+                        public void run () {
+                           runFlow(intended);
+                        }
+                     });
+               }//end while
+            }else{
+               for (int i = 0; i < this.users; ++i){
+                  pool.execute(new Runnable() {
+                        public void run () {
+                           java.util.Random random = java.util.concurrent.ThreadLocalRandom.current();
+                           try{
+                              while (System.nanoTime() < end){
+                                 runFlow(System.nanoTime());
+                                 long think = (long) (-Math.log(1 - random.nextDouble()) * thinkMs);
+                                 Thread.sleep(Math.min(think, Math.max(0, (end - System.nanoTime()) / 1000000L)));
+                              }//end while
+                           }catch (InterruptedException e){
+                              // stopped
+                           }//end try
+                        }
+                     });
+               }//end for
+            }//end if
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         }finally{
+            pool.shutdownNow();
+         }//end try
+         report(report, System.nanoTime() - start);
+      }//end run
+
+      /**
+       * Runs one flow as the simulated user of the calling thread.
+       *
+       * @param intended System.nanoTime() the flow was meant to start at
+       */
+      private void runFlow (long intended) {
+         User me = this.user.get();
+         if (me == null){
+            me = new User(this.accounts[this.nextAccount.getAndIncrement() % this.accounts.length]);
+            this.user.set(me);
+         }//end if
+         String flow = this.script != null ? this.script.get(me.step++ % this.script.size()) : pick();
+         if (flow.equals("ViewMessages")){
+            // the prompts depend on whether the unread box is empty; the
+            // lookup choosing the input is not part of the flow
+            long lookup = System.nanoTime();
+            try{
+               me.unread = this.esql.exists("Select 1 from message where receiverId = ? and deleteStatus not in (2, 3) and status = 'Delivered'",
+                                            me.account.userId);
+            }catch (SQLException e){
+               me.unread = false;
+            }//end try
+            intended += System.nanoTime() - lookup;
+         }//end if
+         me.failed = false;
+         Session.current.set(me.session);
+         try{
+            run(flow, me);
+         }finally{
+            Session.current.remove();
+         }//end try
+         if (me.failed || me.feed.exhausted){
+            AtomicLong count = this.errors.get(flow);
+            if (count == null){
+               AtomicLong fresh = new AtomicLong();
+               count = this.errors.putIfAbsent(flow, fresh);
+               if (count == null)
+                  count = fresh;
+            }//end if
+            count.incrementAndGet();
+         }//end if
+         LatencyHistogram histogram = this.latencies.get(flow);
+         if (histogram == null){
+            LatencyHistogram fresh = new LatencyHistogram();
+            histogram = this.latencies.putIfAbsent(flow, fresh);
+            if (histogram == null)
+               histogram = fresh;
+         }//end if
+         histogram.record((System.nanoTime() - intended) / 1000);
+      }//end runFlow
+
+      private String pick () {
+         double roll = java.util.concurrent.ThreadLocalRandom.current().nextDouble() * this.cumulative[this.cumulative.length - 1];
+         for (int i = 0; i < this.cumulative.length; ++i)
+            if (roll < this.cumulative[i])
+               return this.flows.get(i);
+         return this.flows.get(this.flows.size() - 1);
+      }
+
+      /**
+       * Feeds a flow the input a user would type and runs it.  Input the
+       * flow does not ask for is dropped; a flow asking for more than it
+       * was given ends as it would on a closed terminal, and is counted as
+       * an error.
+       */
+      private void run (String flow, User me) {
+         String userId = me.account.userId;
+         Account other = this.accounts[java.util.concurrent.ThreadLocalRandom.current().nextInt(this.accounts.length)];
+         if (flow.equals("LogIn")){
+            me.feed.set(userId, me.account.password);
+            LogIn(this.esql);
+         }else if (flow.equals("Search")){
+            me.feed.set(other.userId, "2");
+            Search(this.esql, userId);
+         }else if (flow.equals("FriendList")){
+            me.feed.set(other.userId, "3");
+            FriendList(this.esql, userId, userId);
+         }else if (flow.equals("ViewProfile")){
+            me.feed.set();
+            ViewProfile(this.esql, userId);
+         }else if (flow.equals("ViewMessages")){
+            // open the unread box when there is one and return from it
+            if (me.unread)
+               me.feed.set("2", "3", "4");
+            else
+               me.feed.set("2", "4");
+            ViewMessages(this.esql, userId);
+         }else if (flow.equals("SendMessages")){
+            me.feed.set("1", other.userId, "workload message", "1", "3");
+            SendMessages(this.esql, userId);
+         }else if (flow.equals("SendRequest")){
+            me.feed.set();
+            SendRequest(this.esql, userId, other.userId);
+         }else if (flow.equals("ActionRequest")){
+            me.feed.set("back");
+            ActionRequest(this.esql, userId);
+         }else if (flow.equals("AddEdu")){
+            me.feed.set("Workload University", "Load", "BS", "2010-09-01", "2014-06-01");
+            AddEdu(this.esql, userId);
+         }else if (flow.equals("UpdatePass")){
+            // same password, so later LogIn flows still succeed
+            me.feed.set(me.account.password, me.account.password);
+            UpdatePass(this.esql, userId);
+         }//end if
+      }//end run
+
+      private void report (PrintStream report, long elapsed) {
+         report.println(String.format("%-16s %8s %8s %10s %9s %9s %9s %9s", "flow", "count", "errors", "flows/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+         long total = 0, failed = 0;
+         for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(this.latencies).entrySet()){
+            LatencyHistogram h = entry.getValue();
+            AtomicLong errors = this.errors.get(entry.getKey());
+            long count = errors == null ? 0 : errors.get();
+            total += h.getCount();
+            failed += count;
+            report.println(String.format("%-16s %8d %8d %10.1f %9.2f %9.2f %9.2f %9.2f", entry.getKey(), h.getCount(), count,
+               h.getCount() * 1e9 / elapsed, h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(90) / 1e3,
+               h.getValueAtPercentile(99) / 1e3, h.getMax() / 1e3));
+         }//end for
+         report.println(String.format("%-16s %8d %8d %10.1f", "total", total, failed, total * 1e9 / elapsed));
+      }//end report
+
+      /**
+       * Error stream of a simulated user's session.  The menus report their
+       * failures there, so any write marks the current flow as failed.
+       */
+      private static class FlowErrors extends OutputStream {
+
+         private final User user;
+
+         FlowErrors (User user) {
+            this.user = user;
+         }
+
+         public void write (int b) {
+            this.user.failed = true;
+         }
+
+         public void write (byte[] buf, int off, int len) {
+            this.user.failed = true;
+         }
+      }//end FlowErrors
+   }//end Workload
+
+   /**
+    * Seeded generator of synthetic datasets for scale testing.  Users are
+    * split in chunks of CHUNK users and every chunk draws from its own
+    * random stream, seeded from the dataset seed, the table and the chunk
+    * number, so the same seed and parameters give byte for byte the same
+    * files whatever the number of threads.  Chunks are generated in
+    * parallel on all cores and then concatenated in order into one CSV
+    * file per table, with a header line, ready for BulkLoader.
+    *
+    * Connections follow a power law: out-degrees are Pareto distributed
+    * with exponent profnetwork.gen.skew around a mean of
+    * profnetwork.gen.connections, and targets favour low user numbers, so
+    * a few users become hubs.  An edge always goes from the higher user
+    * number to the lower one, so no pair of users is connected in both
+    * directions.  Statuses are mostly Accept, with some
+    * Request and Reject.  Messages (profnetwork.gen.messages per user on
+    * average) go to connections-like skewed receivers with every
+    * deleteStatus and status; each user also gets up to two education and
+    * three work rows.
+    */
+   public static class DatasetGenerator {
+
+      static final int CHUNK = 10000;
+      static final String[] TABLES = { "usr", "connection_usr", "message", "work_expr", "educational_details" };
+
+      private static final String[] FIRST = { "Ada", "Alan", "Barbara", "Claude", "Donald", "Edsger", "Frances",
+         "Grace", "Hedy", "Ivan", "John", "Katherine", "Linus", "Margaret", "Niklaus", "Radia", "Shafi", "Tim" };
+      private static final String[] LAST = { "Lovelace", "Turing", "Liskov", "Shannon", "Knuth", "Dijkstra", "Allen",
+         "Hopper", "Lamarr", "Sutherland", "Backus", "Johnson", "Torvalds", "Hamilton", "Wirth", "Perlman", "Goldwasser", "Berners-Lee" };
+      private static final String[] COMPANIES = { "Initech", "Globex", "Umbrella", "Hooli", "Acme", "Stark", "Wayne", "Tyrell" };
+      private static final String[] ROLES = { "Engineer", "Analyst", "Manager", "Designer", "Researcher", "Intern" };
+      private static final String[] CITIES = { "Riverside", "Irvine", "Austin", "Seattle", "Boston", "Denver" };
+      private static final String[] SCHOOLS = { "UC Riverside", "UC Irvine", "UT Austin", "MIT", "CMU", "Stanford" };
+      private static final String[] MAJORS = { "Computer Science", "Mathematics", "Physics", "Economics", "Biology" };
+      private static final String[] DEGREES = { "BS", "MS", "PhD" };
+      private static final String[] STATUSES = { "Delivered", "Read", "Sent", "Draft" };
+      // 2020-01-01 and three years, in seconds
+      private static final long EPOCH = 1577836800L;
+      private static final long SPAN = 3L * 365 * 24 * 3600;
+
+      private final int users;
+      private final long seed = Long.getLong("profnetwork.gen.seed", 42L);
+      private final double connections = Double.parseDouble(System.getProperty("profnetwork.gen.connections", "20"));
+      private final double skew = Double.parseDouble(System.getProperty("profnetwork.gen.skew", "2.1"));
+      private final int messages = Integer.getInteger("profnetwork.gen.messages", 30);
+
+      public DatasetGenerator (int users) {
+         if (users < 2)
+            throw new IllegalArgumentException("At least two users are needed");
+         this.users = users;
+         if ((long) users * (2 * this.messages + 1) > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many messages for integer msgIds, lower profnetwork.gen.messages");
+      }
+
+      /**
+       * Writes one CSV file per table into a directory.
+       *
+       * @return the files written, in load order
+       */
+      public List<File> writeCsv (final File dir) throws Exception {
+         if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+         final int chunks = (this.users + CHUNK - 1) / CHUNK;
+         long start = System.nanoTime();
+         java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+         try{
+            List<java.util.concurrent.Callable<Void>> tasks = new ArrayList<java.util.concurrent.Callable<Void>>();
+            for (int c = 0; c < chunks; ++c){
+               final int chunk = c;
+               tasks.add(new java.util.concurrent.Callable<Void>() {
+                     public Void call () throws IOException {
+                        generate(dir, chunk);
+                        return null;
+                     }
+                  });
+            }//end for
+            for (java.util.concurrent.Future<Void> done : pool.invokeAll(tasks))
+               done.get();
+         }finally{
+            pool.shutdown();
+         }//end try
+
+         List<File> files = new ArrayList<File>();
+         for (String table : TABLES){
+            File file = new File(dir, table + ".csv");
+            java.io.OutputStream out = new java.io.BufferedOutputStream(new java.io.FileOutputStream(file), 1 << 16);
+            try{
+               out.write((header(table) + "\n").getBytes("UTF-8"));
+               byte[] buf = new byte[1 << 16];
+               for (int c = 0; c < chunks; ++c){
+                  File part = part(dir, table, c);
+                  java.io.InputStream in = new java.io.FileInputStream(part);
+                  try{
+                     int n;
+                     while ((n = in.read(buf)) > 0)
+                        out.write(buf, 0, n);
+                  }finally{
+                     in.close();
+                  }//end try
+                  part.delete();
+               }//end for
+            }finally{
+               out.close();
+            }//end try
+            files.add(file);
+         }//end for
+         System.out.println(String.format("Generated %d users into %s in %.1f s (seed %d)",
+            this.users, dir, (System.nanoTime() - start) / 1e9, this.seed));
+         return files;
+      }//end writeCsv
+
+      /**
+       * Generates the dataset and loads it with BulkLoader, deferring the
+       * index builds.
+       */
+      public void load (ProfNetwork esql) throws Exception {
+         File dir = java.nio.file.Files.createTempDirectory("profnetwork-gen").toFile();
+         try{
+            BulkLoader loader = new BulkLoader(esql, true);
+            for (File file : writeCsv(dir)){
+               String name = file.getName();
+               loader.load(name.substring(0, name.length() - 4), file);
+            }//end for
+         }finally{
+            for (File file : dir.listFiles())
+               file.delete();
+            dir.delete();
+         }//end try
+      }//end load
+
+      static String header (String table) {
+         if (table.equals("usr"))
+            return "userId,password,email,name,dateOfBirth";
+         if (table.equals("connection_usr"))
+            return "userId,connectionId,status";
+         if (table.equals("message"))
+            return "msgId,senderId,receiverId,contents,sendTime,deleteStatus,status";
+         if (table.equals("work_expr"))
+            return "userId,company,role,location,startDate,endDate";
+         return "userId,instituitionName,major,degree,startdate,enddate";
+      }//end header
+
+      private static File part (File dir, String table, int chunk) {
+         return new File(dir, String.format("%s.part-%06d.csv", table, chunk));
+      }
+
+      static String userId (int u) {
+         return "u" + u;
+      }
+
+      private java.util.Random random (int table, int chunk) {
+         // SplitMix style mixing, so neighbouring chunks get unrelated streams
+         long z = this.seed + 0x9E3779B97F4A7C15L * (table * 1000003L + chunk + 1);
+         z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+         z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+         return new java.util.Random(z ^ (z >>> 31));
+      }
+
+      /** A user number skewed towards the low numbers, the hubs. */
+      private int skewedUser (java.util.Random random) {
+         return (int) Math.min(this.users - 1, (long) (this.users * Math.pow(random.nextDouble(), this.skew)));
+      }
+
+      /** A Pareto distributed out-degree with the configured mean. */
+      private int degree (java.util.Random random) {
+         double alpha = Math.max(this.skew - 1, 1.01);
+         double scale = this.connections / 2 * (alpha - 1) / alpha;
+         double d = scale / Math.pow(1 - random.nextDouble(), 1 / alpha);
+         return (int) Math.min(d, Math.min(this.users - 1, 5000));
+      }
+
+      private static String date (java.util.Random random, int fromYear, int years) {
+         return String.format("%04d-%02d-%02d", fromYear + random.nextInt(years), 1 + random.nextInt(12), 1 + random.nextInt(28));
+      }
+
+      private void generate (File dir, int chunk) throws IOException {
+         int from = chunk * CHUNK, to = Math.min(this.users, from + CHUNK);
+         java.io.Writer usr = writer(dir, "usr", chunk), conn = writer(dir, "connection_usr", chunk),
+            msg = writer(dir, "message", chunk), work = writer(dir, "work_expr", chunk),
+            edu = writer(dir, "educational_details", chunk);
+         try{
+            java.util.Random r = random(0, chunk);
+            for (int u = from; u < to; ++u){
+               String first = FIRST[r.nextInt(FIRST.length)], last = LAST[r.nextInt(LAST.length)];
+               usr.write(userId(u) + ",pw" + Long.toString(r.nextLong() & 0xffffffffL, 36) + "," +
+                         userId(u) + "@example.com," + first + " " + last + "," + date(r, 1950, 55) + "\n");
+            }//end for
+
+            r = random(1, chunk);
+            Set<Integer> targets = new HashSet<Integer>();
+            for (int u = from; u < to; ++u){
+               targets.clear();
+               int d = degree(r);
+               for (int tries = 0; targets.size() < d && tries < d * 4; ++tries){
+                  int v = skewedUser(r);
+                  // v's own draws cannot reach u, so the pair is only written once
+                  if (v < u && targets.add(v)){
+                     int roll = r.nextInt(100);
+                     conn.write(userId(u) + "," + userId(v) + "," + (roll < 80 ? "Accept" : roll < 95 ? "Request" : "Reject") + "\n");
+                  }//end if
+               }//end for
+            }//end for
+
+            r = random(2, chunk);
+            int perUser = 2 * this.messages + 1;
+            for (int u = from; u < to; ++u){
+               int count = r.nextInt(perUser);
+               for (int j = 0; j < count; ++j){
+                  int v = skewedUser(r);
+                  if (v == u)
+                     v = (u + 1) % this.users;
+                  int roll = r.nextInt(100);
+                  int deleteStatus = roll < 70 ? 0 : roll < 80 ? 1 : roll < 90 ? 2 : 3;
+                  String sent = java.time.LocalDateTime.ofEpochSecond(EPOCH + (long) (r.nextDouble() * SPAN), 0,
+                     java.time.ZoneOffset.UTC).toString().replace('T', ' ');
+                  msg.write(((long) u * perUser + j + 1) + "," + userId(u) + "," + userId(v) + ",message " + j + " from " +
+                            userId(u) + "," + sent + "," + deleteStatus + "," + STATUSES[r.nextInt(STATUSES.length)] + "\n");
+               }//end for
+            }//end for
+
+            r = random(3, chunk);
+            for (int u = from; u < to; ++u){
+               int year = 1995 + r.nextInt(25);
+               for (int j = r.nextInt(4); j > 0; --j, year += 1 + r.nextInt(4)){
+                  work.write(userId(u) + "," + COMPANIES[r.nextInt(COMPANIES.length)] + "," + ROLES[r.nextInt(ROLES.length)] + "," +
+                             CITIES[r.nextInt(CITIES.length)] + "," + date(r, year, 1) + "," + date(r, year + 1, 3) + "\n");
+               }//end for
+            }//end for
+
+            r = random(4, chunk);
+            for (int u = from; u < to; ++u){
+               int year = 1990 + r.nextInt(25);
+               for (int j = r.nextInt(3); j > 0; --j, year += 4){
+                  edu.write(userId(u) + "," + SCHOOLS[r.nextInt(SCHOOLS.length)] + "," + MAJORS[r.nextInt(MAJORS.length)] + "," +
+                            DEGREES[r.nextInt(DEGREES.length)] + "," + date(r, year, 1) + "," + date(r, year + 3, 1) + "\n");
+               }//end for
+            }//end for
+         }finally{
+            usr.close();
+            conn.close();
+            msg.close();
+            work.close();
+            edu.close();
+         }//end try
+      }//end generate
+
+      private static java.io.Writer writer (File dir, String table, int chunk) throws IOException {
+         return new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+            new java.io.FileOutputStream(part(dir, table, chunk)), "UTF-8"), 1 << 16);
+      }
+   }//end DatasetGenerator
 
    /**
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    *             and optionally --serve with a local TCP port to accept
+    *             sessions on instead of using the terminal
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean serve = args.length == 5 && args[3].equals("--serve");
+      boolean load = args.length > 4 && args[3].equals("--load");
+      boolean bench = args.length == 4 && args[3].equals("--bench");
+      boolean workload = (args.length == 5 || args.length == 6) && args[3].equals("--workload");
+      boolean generate = (args.length == 5 || args.length == 6) && args[3].equals("--generate");
+      if (args.length != 3 && !serve && !load && !bench && !workload && !generate) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             ProfNetwork.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--serve <tcp port> | --load [--defer-indexes] <table>=<file.csv> ... | --bench | --workload <users> [<script>] | --generate <users> [<csv dir>]]");
          return;
       }//end if
 
-      Greeting();
+      if (args.length == 3)
+         Greeting();
       ProfNetwork esql = null;
       try{
          // use postgres JDBC driver.
@@ -249,129 +5092,30 @@ public class ProfNetwork {
          String user = args[2];
          esql = new ProfNetwork (dbname, dbport, user, "");
 
-         boolean keepon = true;
-         while(keepon) {
-            // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            String password = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-		System.out.println("\n---------");
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-		System.out.println("0. Search");
-                System.out.println("1. Friends");
-                System.out.println("2. Profile");
-                System.out.println("3. Messages");
-		System.out.println("4. Friend Request");
-                System.out.println(".........................");
-                System.out.println("9. Log out");
-                switch (readChoice()){
-		   case 0: Search(esql, authorisedUser); break;
-		   case 1: FriendList(esql, authorisedUser, authorisedUser); break;
-		   case 2: boolean profile_menu = true;
-                           while(profile_menu) {
-                              System.out.println("Profile");
-                              System.out.println("--------");
-                              System.out.println("1. View Profile");
-                              System.out.println("2. Update Profile");
-                              System.out.println("3. Exit to Main Menu ");
-                              switch(readChoice()){
-                                 case 1: ViewProfile(esql, authorisedUser); break;
-                                 case 2: boolean update_menu = true;
-                                          while(update_menu) {
-                                             System.out.println("Choose Field to Update");
-                                             System.out.println("------------------------");
-                                             System.out.println("1. Password");
-                                             System.out.println("2. Educational Details");
-                                             System.out.println("3. Work Experience");
-                                             System.out.println("4. Exit to Profile Menu");
-                                             switch(readChoice()){
-                                                case 1: UpdatePass(esql, authorisedUser); break;
-                                                case 2: boolean edit_edu = true;
-                                                         while(edit_edu) {
-                                                            System.out.println("Education - Choose Option");
-                                                            System.out.println("-----------------------------");
-                                                            System.out.println("1. Add New Educational Details");
-                                                            System.out.println("2. Update Existing Educational Details");
-                                                            System.out.println("3. Delete Existing Educational Details");
-                                                            System.out.println("4. View Current Educational Details");
-                                                            System.out.println("5. Exit to Update menu");
-                                                            switch(readChoice()){
-                                                                     case 1: AddEdu(esql, authorisedUser); break;
-                                                                     case 2: UpdateEdu(esql, authorisedUser); break;
-                                                                     case 3: DeleteEdu(esql, authorisedUser); break;
-                                                                     case 4: ViewEdu(esql, authorisedUser); break;
-                                                                     case 5: edit_edu = false; break;
-                                                            }
-                                                         } break;
-                                                case 3: boolean edit_exp = true;
-                                                         while(edit_exp) {
-                                                            System.out.println("Work Experience - Choose Option");
-                                                            System.out.println("------------------------");
-                                                            System.out.println("1. Add New Work Experience");
-                                                            System.out.println("2. Update Existing Work Experience");
-                                                            System.out.println("3. Delete Existing Work Experience");
-                                                            System.out.println("4. View Current Work Experience");
-                                                            System.out.println("5. Exit to Update menu");
-                                                            switch(readChoice()){
-                                                                     case 1: AddExp(esql, authorisedUser); break;
-                                                                     case 2: UpdateExp(esql, authorisedUser); break;
-                                                                     case 3: DeleteExp(esql, authorisedUser); break;
-                                                                     case 4: ViewExp(esql, authorisedUser); break;
-                                                                     case 5: edit_exp = false; break;
-                                                            }
-                                                         } break;
-                                                case 4: update_menu = false; break;
-                                             }
-                                          } break; 
-                                 case 3: profile_menu = false; break;
-                              }
-                           } break;
-                   case 3: boolean message_menu = true;
-                           while(message_menu) {
-                              System.out.println("Messages - Choose Option");
-                              System.out.println("------------------------");
-                              System.out.println("1. View Messages");
-                              System.out.println("2. Send New Message");
-                              System.out.println("3. Exit to Main Menu");
-                              switch(readChoice()){
-                                       case 1: ViewMessages(esql, authorisedUser); break;
-                                       case 2: SendMessages(esql, authorisedUser); break;
-                                       case 3: message_menu = false; break;
-                              }
-                           } break;
-                   case 4: boolean request_menu = true;
-                           while(request_menu) {
-                              System.out.println("Friend Request - Choose Option");
-                              System.out.println("------------------------");
-                              System.out.println("1. Send Friend Request");
-                              System.out.println("2. View Incoming Request");
-                              System.out.println("3. Exit to Main Menu");
-                              switch(readChoice()){
-                                       case 1: SearchandSendRequest(esql, authorisedUser);break;
-                                       case 2: ActionRequest(esql, authorisedUser); break;
-                                       case 3: request_menu = false; break;
-                              }
-                           } break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
-              }
-            }
-         }//end while
+         if (serve){
+            Serve(esql, Integer.parseInt(args[4]));
+         }else if (generate){
+            DatasetGenerator generator = new DatasetGenerator(Integer.parseInt(args[4]));
+            if (args.length == 6)
+               generator.writeCsv(new File(args[5]));
+            else
+               generator.load(esql);
+         }else if (workload){
+            new Workload(esql, Integer.parseInt(args[4]), args.length == 6 ? new File(args[5]) : null).run(System.out);
+         }else if (bench){
+            new Benchmark(esql).run(System.out);
+         }else if (load){
+            int first = args[4].equals("--defer-indexes") ? 5 : 4;
+            BulkLoader loader = new BulkLoader(esql, first == 5);
+            for (int i = first; i < args.length; ++i){
+               int eq = args[i].indexOf('=');
+               if (eq < 0)
+                  throw new IllegalArgumentException("Expected <table>=<file.csv>, got " + args[i]);
+               loader.load(args[i].substring(0, eq), new File(args[i].substring(eq + 1)));
+            }//end for
+         }else{
+            new Session(esql, null).run();
+         }//end if
       }catch(Exception e) {
          System.err.println (e.getMessage ());
       }finally{
@@ -388,8 +5132,565 @@ public class ProfNetwork {
       }//end try
    }//end main
 
+   /**
+    * State of one user session: where its input comes from, where its
+    * output goes and who is logged in.  The menu methods keep using the
+    * static in and System.out, which resolve to the session bound to the
+    * current thread.
+    */
+   public static class Session implements Runnable {
+
+      private static final ThreadLocal<Session> current = new ThreadLocal<Session>();
+
+      private final ProfNetwork esql;
+      private final Socket socket;
+      final BufferedReader in;
+      final PrintStream out;
+      final PrintStream err;
+
+      // user logged in on this session, null while at the login menu.
+      String authorisedUser = null;
+
+      // data warmed up at login for authorisedUser, see SessionCache.
+      volatile SessionCache cache = null;
+
+      /**
+       * A session reading and writing the given streams, as used by the
+       * simulated users of Workload.
+       */
+      Session (ProfNetwork esql, BufferedReader in, PrintStream out, PrintStream err) {
+         this.esql = esql;
+         this.socket = null;
+         this.in = in;
+         this.out = out;
+         this.err = err;
+      }
+
+      /**
+       * @param esql the shared database helpers
+       * @param socket the client connection, or null for the terminal
+       */
+      public Session (ProfNetwork esql, Socket socket) throws IOException {
+         this.esql = esql;
+         this.socket = socket;
+         if (socket == null){
+            this.in = console;
+            this.out = null;
+            this.err = null;
+         }else{
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            this.out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            this.err = this.out;
+         }//end if
+      }
+
+      static Session current () {
+         return current.get();
+      }
+
+      public void run () {
+         current.set(this);
+         try{
+            if (this.socket != null)
+               Greeting();
+            MainMenu(this.esql, this);
+         }catch (SessionClosedException e){
+            // client disconnected.
+         }finally{
+            current.remove();
+            if (this.socket != null){
+               try{
+                  this.socket.close();
+               }catch (IOException e){
+                  // ignored.
+               }//end try
+            }//end if
+         }//end try
+      }//end run
+   }//end Session
+
+   /**
+    * Hot data of a logged in user, fetched concurrently right after LogIn
+    * so that the main menu can show badges and the first visit to the
+    * friends, requests, drafts and profile screens is served from memory.
+    * Every piece is a CompletableFuture running on the warm-up workers, each
+    * on its own pooled connection.  Pieces older than
+    * profnetwork.sessionCache.ttlMs are not served, and MainMenu refreshes
+    * the pieces a screen may have changed when the user leaves it.
+    */
+   public static class SessionCache {
+
+      private static final long TTL_NANOS =
+         Long.getLong("profnetwork.sessionCache.ttlMs", 30 * 1000L) * 1000000L;
+      // how long the menu waits for a badge before printing without it
+      private static final long BADGE_WAIT_MS = Long.getLong("profnetwork.sessionCache.badgeWaitMs", 250L);
+
+      // as many workers as pooled connections, so warm-ups queue rather than wait on the pool
+      private static final java.util.concurrent.ThreadPoolExecutor WORKERS;
+      static {
+         int size = Integer.getInteger("profnetwork.pool.size", 8);
+         WORKERS = new java.util.concurrent.ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS,
+            new java.util.concurrent.LinkedBlockingQueue<Runnable>(), new java.util.concurrent.ThreadFactory() {
+               public Thread newThread (Runnable r) {
+                  Thread t = new Thread(r, "session-warmup");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+         WORKERS.allowCoreThreadTimeOut(true);
+      }
+
+      static final String FRIENDS_QUERY =
+         "Select connectionId from connection_usr where userId = ? and status = 'Accept' union Select userId from connection_usr where connectionId = ? and status = 'Accept'";
+      static final String PENDING_QUERY =
+         "select ROW_NUMBER() OVER(ORDER BY userId) AS row_num, userId, status FROM connection_usr AS E2 WHERE E2.connectionId = ? and E2.status = 'Request'";
+      static final String DRAFTS_QUERY =
+         "Select msgId, receiverId, contents, sendTime from message where senderId = ? and deleteStatus <> 1 and status = 'Draft'";
+      // unread, read and outgoing counts in one pass, with the filters of ViewMessages
+      static final String COUNTS_QUERY =
+         "Select coalesce(sum(case when receiverId = ? and deleteStatus not in (2, 3) and status = 'Delivered' then 1 else 0 end), 0), " +
+         "coalesce(sum(case when receiverId = ? and deleteStatus not in (2, 3) and status = 'Read' then 1 else 0 end), 0), " +
+         "coalesce(sum(case when senderId = ? and deleteStatus not in (1, 3) and status <> 'Draft' then 1 else 0 end), 0) " +
+         "From message Where receiverId = ? or senderId = ?";
+
+      /**
+       * One piece of the cache and when its fetch started.
+       */
+      private static final class Piece<T> {
+         final CompletableFuture<T> future;
+         final long started = System.nanoTime();
+
+         Piece (CompletableFuture<T> future) {
+            this.future = future;
+         }
+      }
+
+      private final ProfNetwork esql;
+      final String userId;
+      private volatile Piece<List<String[]>> friends, pending, drafts;
+      private volatile Piece<long[]> counts;
+
+      private SessionCache (ProfNetwork esql, String userId) {
+         this.esql = esql;
+         this.userId = userId;
+      }
+
+      /**
+       * Starts fetching every piece for a user who just logged in.
+       */
+      public static SessionCache warm (ProfNetwork esql, String userId) {
+         SessionCache cache = new SessionCache(esql, userId);
+         cache.refreshFriends();
+         cache.refreshRequests();
+         cache.refreshMessages();
+         cache.refreshProfile();
+         return cache;
+      }
+
+      /**
+       * @return the cache of the session bound to the calling thread, when
+       * it belongs to the given user, null otherwise
+       */
+      static SessionCache of (String userId) {
+         Session session = Session.current();
+         SessionCache cache = session == null ? null : session.cache;
+         return cache != null && cache.userId.equals(userId) ? cache : null;
+      }
+
+      public void refreshFriends () {
+         this.friends = rows(FRIENDS_QUERY, this.userId, this.userId);
+      }
+
+      public void refreshRequests () {
+         this.pending = rows(PENDING_QUERY, this.userId);
+      }
+
+      public void refreshMessages () {
+         this.drafts = rows(DRAFTS_QUERY, this.userId);
+         this.counts = fetch(new java.util.concurrent.Callable<long[]>() {
+               public long[] call () throws SQLException {
+                  return esql.query(COUNTS_QUERY, new RowMapper<long[]>() {
+                        public long[] mapRow (ResultSet rs, int rowNum) throws SQLException {
+                           return new long[]{ rs.getLong(1), rs.getLong(2), rs.getLong(3) };
+                        }
+                     }, userId, userId, userId, userId, userId).get(0);
+               }
+            });
+      }
+
+      /**
+       * Loads the own profile through ProfileLoader, which leaves it in the
+       * shared ProfileCache for ViewProfile.
+       */
+      public void refreshProfile () {
+         fetch(new java.util.concurrent.Callable<Profile>() {
+               public Profile call () throws SQLException {
+                  return ProfileLoader.load(esql, userId, userId);
+               }
+            });
+      }
+
+      /**
+       * @return the accepted connections, one connectionid per row, or null
+       * when not cached
+       */
+      public List<String[]> getFriends () {
+         return value(this.friends, Long.MAX_VALUE);
+      }
+
+      /**
+       * @return the pending incoming requests as listed by ActionRequest, or
+       * null when not cached
+       */
+      public List<String[]> getPendingRequests () {
+         return value(this.pending, Long.MAX_VALUE);
+      }
+
+      /**
+       * @return the drafts as listed by SendMessages, or null when not cached
+       */
+      public List<String[]> getDrafts () {
+         return value(this.drafts, Long.MAX_VALUE);
+      }
+
+      /**
+       * @return the main menu label of a section with its badge, if the
+       * badge is ready within a short wait
+       */
+      public String badge (int choice, String label) {
+         switch (choice){
+            case 1: List<String[]> f = value(this.friends, BADGE_WAIT_MS);
+                    return f == null ? label : label + " (" + f.size() + ")";
+            case 3: long[] c = value(this.counts, BADGE_WAIT_MS);
+                    return c == null || c[0] == 0 ? label : label + " (" + c[0] + " unread)";
+            case 4: List<String[]> p = value(this.pending, BADGE_WAIT_MS);
+                    return p == null || p.isEmpty() ? label : label + " (" + p.size() + " pending)";
+            default: return label;
+         }//end switch
+      }//end badge
+
+      /**
+       * Refreshes the pieces the given main menu section may have changed.
+       */
+      public void refreshAfter (int choice) {
+         switch (choice){
+            case 1: refreshFriends(); break;
+            case 2: refreshProfile(); break;
+            case 3: refreshMessages(); break;
+            case 4: refreshFriends(); refreshRequests(); break;
+            default: break;
+         }//end switch
+      }
+
+      private Piece<List<String[]>> rows (final String sql, final Object... params) {
+         return fetch(new java.util.concurrent.Callable<List<String[]>>() {
+               public List<String[]> call () throws SQLException {
+                  return esql.query(sql, new RowMapper<String[]>() {
+                        public String[] mapRow (ResultSet rs, int rowNum) throws SQLException {
+                           String[] row = new String[rs.getMetaData().getColumnCount()];
+                           for (int i = 0; i < row.length; ++i)
+                              row[i] = rs.getString(i + 1);
+                           return row;
+                        }
+                     }, params);
+               }
+            });
+      }
+
+      /**
+       * Runs a loader on the warm-up workers with the caller's replica
+       * routing, so that a refresh after the user's own write reads the
+       * primary as the session thread itself would.
+       */
+      private static <T> Piece<T> fetch (final java.util.concurrent.Callable<T> loader) {
+         final Long written = lastWrite.get();
+         final boolean primary = primaryOnly.get();
+         return new Piece<T>(CompletableFuture.supplyAsync(new java.util.function.Supplier<T>() {
+               public T get () {
+                  String outer = QueryStats.enter("LogIn warm-up");
+                  Long ownWrite = lastWrite.get();
+                  boolean ownPrimary = onPrimary(primary);
+                  lastWrite.set(written);
+                  try{
+                     return loader.call();
+                  }catch (Exception e){
+                     throw new java.util.concurrent.CompletionException(e);
+                  }finally{
+                     lastWrite.set(ownWrite);
+                     onPrimary(ownPrimary);
+                     QueryStats.exit(outer);
+                  }//end try
+               }
+            }, WORKERS));
+      }
+
+      /**
+       * @return the value of a fresh piece, waiting at most waitMs for it,
+       * or null when it is stale, failed or not ready in time
+       */
+      private static <T> T value (Piece<T> piece, long waitMs) {
+         if (piece == null || System.nanoTime() - piece.started > TTL_NANOS)
+            return null;
+         try{
+            return piece.future.get(waitMs, TimeUnit.MILLISECONDS);
+         }catch (Exception e){
+            return null;
+         }//end try
+      }
+   }//end SessionCache
+
+   /**
+    * Thrown by readChoice when the session input has reached its end.
+    */
+   static class SessionClosedException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+   }
+
+   /**
+    * Reader behind the static in field, delegating to the reader of the
+    * session bound to the calling thread.
+    */
+   static class SessionReader extends BufferedReader {
+
+      SessionReader () {
+         super(new StringReader(""), 1);
+      }
+
+      private BufferedReader target () {
+         Session session = Session.current();
+         return session == null ? console : session.in;
+      }
+
+      public String readLine () throws IOException {
+         return target().readLine();
+      }
+
+      public int read () throws IOException {
+         return target().read();
+      }
+
+      public int read (char[] buf, int off, int len) throws IOException {
+         return target().read(buf, off, len);
+      }
+
+      public boolean ready () throws IOException {
+         return target().ready();
+      }
+   }//end SessionReader
+
+   /**
+    * @return the output of the session bound to the calling thread, or
+    * System.out at the terminal.  Each session has its own stream, so a
+    * client that stops reading only blocks its own session.
+    */
+   static PrintStream out () {
+      Session session = Session.current();
+      return session == null || session.out == null ? System.out : session.out;
+   }
+
+   /**
+    * @return where the menus report errors for the session bound to the
+    * calling thread, or System.err at the terminal
+    */
+   static PrintStream err () {
+      Session session = Session.current();
+      return session == null || session.err == null ? System.err : session.err;
+   }
+
+   /**
+    * Accepts sessions on a local TCP port, speaking the same line based menu
+    * protocol as the terminal.  Each session runs on its own thread, a
+    * virtual thread when the JVM supports them, and only holds a database
+    * connection while one of the execute helpers is running.
+    *
+    * @param esql the shared database helpers
+    * @param port the local TCP port to listen on
+    */
+   public static void Serve(ProfNetwork esql, int port) throws IOException {
+      ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+      System.out.println("Accepting sessions on " + server.getLocalSocketAddress());
+      try{
+         while (true){
+            Socket client = server.accept();
+            try{
+               newSessionThread(new Session(esql, client)).start();
+            }catch (IOException e){
+               System.err.println(e.getMessage());
+               client.close();
+            }//end try
+         }//end while
+      }finally{
+         server.close();
+      }//end try
+   }//end Serve
+
+   /**
+    * Creates the thread for a session: a virtual thread when running on a
+    * JVM that has them, otherwise a daemon platform thread.
+    */
+   static Thread newSessionThread(Runnable session) {
+      try{
+         Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+         return (Thread) Class.forName("java.lang.Thread$Builder")
+            .getMethod("unstarted", Runnable.class).invoke(builder, session);
+      }catch (Exception e){
+         Thread thread = new Thread(session);
+         thread.setDaemon(true);
+         return thread;
+      }//end try
+   }//end newSessionThread
+
+   /**
+    * Runs the menus for one session until the user exits.  The logged in
+    * user is kept on the session rather than in main, so that several
+    * sessions can share one ProfNetwork.
+    */
+   public static void MainMenu(ProfNetwork esql, Session session) {
+      boolean keepon = true;
+      while(keepon) {
+         // These are sample SQL statements
+         out().println("MAIN MENU");
+         out().println("---------");
+         out().println("1. Create user");
+         out().println("2. Log in");
+         out().println("9. < EXIT");
+         session.authorisedUser = null;
+         switch (readChoice()){
+            case 1: CreateUser(esql); break;
+            case 2: session.authorisedUser = LogIn(esql); break;
+            case 9: keepon = false; break;
+            default : out().println("Unrecognized choice!"); break;
+         }//end switch
+         if (session.authorisedUser != null) {
+           SessionCache cache = SessionCache.warm(esql, session.authorisedUser);
+           session.cache = cache;
+           boolean usermenu = true;
+           while(usermenu) {
+		out().println("\n---------");
+             out().println("MAIN MENU");
+             out().println("---------");
+		out().println("0. Search");
+             out().println(cache.badge(1, "1. Friends"));
+             out().println("2. Profile");
+             out().println(cache.badge(3, "3. Messages"));
+		out().println(cache.badge(4, "4. Friend Request"));
+             out().println(".........................");
+             out().println("8. Stats");
+             out().println("9. Log out");
+             int choice = readChoice();
+             switch (choice){
+		   case 0: Search(esql, session.authorisedUser); break;
+		   case 1: FriendList(esql, session.authorisedUser, session.authorisedUser); break;
+		   case 2: boolean profile_menu = true;
+                        while(profile_menu) {
+                           out().println("Profile");
+                           out().println("--------");
+                           out().println("1. View Profile");
+                           out().println("2. Update Profile");
+                           out().println("3. Exit to Main Menu ");
+                           switch(readChoice()){
+                              case 1: ViewProfile(esql, session.authorisedUser); break;
+                              case 2: boolean update_menu = true;
+                                       while(update_menu) {
+                                          out().println("Choose Field to Update");
+                                          out().println("------------------------");
+                                          out().println("1. Password");
+                                          out().println("2. Educational Details");
+                                          out().println("3. Work Experience");
+                                          out().println("4. Exit to Profile Menu");
+                                          switch(readChoice()){
+                                             case 1: UpdatePass(esql, session.authorisedUser); break;
+                                             case 2: boolean edit_edu = true;
+                                                      while(edit_edu) {
+                                                         out().println("Education - Choose Option");
+                                                         out().println("-----------------------------");
+                                                         out().println("1. Add New Educational Details");
+                                                         out().println("2. Update Existing Educational Details");
+                                                         out().println("3. Delete Existing Educational Details");
+                                                         out().println("4. View Current Educational Details");
+                                                         out().println("5. Exit to Update menu");
+                                                         switch(readChoice()){
+                                                                  case 1: AddEdu(esql, session.authorisedUser); break;
+                                                                  case 2: UpdateEdu(esql, session.authorisedUser); break;
+                                                                  case 3: DeleteEdu(esql, session.authorisedUser); break;
+                                                                  case 4: ViewEdu(esql, session.authorisedUser); break;
+                                                                  case 5: edit_edu = false; break;
+                                                         }
+                                                      } break;
+                                             case 3: boolean edit_exp = true;
+                                                      while(edit_exp) {
+                                                         out().println("Work Experience - Choose Option");
+                                                         out().println("------------------------");
+                                                         out().println("1. Add New Work Experience");
+                                                         out().println("2. Update Existing Work Experience");
+                                                         out().println("3. Delete Existing Work Experience");
+                                                         out().println("4. View Current Work Experience");
+                                                         out().println("5. Exit to Update menu");
+                                                         switch(readChoice()){
+                                                                  case 1: AddExp(esql, session.authorisedUser); break;
+                                                                  case 2: UpdateExp(esql, session.authorisedUser); break;
+                                                                  case 3: DeleteExp(esql, session.authorisedUser); break;
+                                                                  case 4: ViewExp(esql, session.authorisedUser); break;
+                                                                  case 5: edit_exp = false; break;
+                                                         }
+                                                      } break;
+                                             case 4: update_menu = false; break;
+                                          }
+                                       } break; 
+                              case 3: profile_menu = false; break;
+                           }
+                        } break;
+                case 3: boolean message_menu = true;
+                        while(message_menu) {
+                           out().println("Messages - Choose Option");
+                           out().println("------------------------");
+                           out().println("1. View Messages");
+                           out().println("2. Send New Message");
+                           out().println("3. Exit to Main Menu");
+                           switch(readChoice()){
+                                    case 1: ViewMessages(esql, session.authorisedUser); break;
+                                    case 2: SendMessages(esql, session.authorisedUser); break;
+                                    case 3: message_menu = false; break;
+                           }
+                        } break;
+                case 4: boolean request_menu = true;
+                        while(request_menu) {
+                           out().println("Friend Request - Choose Option");
+                           out().println("------------------------");
+                           out().println("1. Send Friend Request");
+                           out().println("2. View Incoming Request");
+                           out().println("3. Exit to Main Menu");
+                           out().println("4. People You May Know");
+                           switch(readChoice()){
+                                    case 1: SearchandSendRequest(esql, session.authorisedUser);break;
+                                    case 2: ActionRequest(esql, session.authorisedUser); break;
+                                    case 3: request_menu = false; break;
+                                    case 4: PeopleYouMayKnow(esql, session.authorisedUser); break;
+                           }
+                        } break;
+                case 8: for (String line : esql.getQueryStats().getSummary())
+                           out().println(line);
+                        for (String line : esql.getQueryStats().getPlans())
+                           out().println(line);
+                        try{
+                           out().println();
+                           new SchemaMigrations(esql).report();
+                        }catch (SQLException e){
+                           err().println (e.getMessage ());
+                        }//end try
+                        break;
+                case 9: usermenu = false; break;
+                default : out().println("Unrecognized choice!"); break;
+             }
+             cache.refreshAfter(choice);
+           }
+           session.cache = null;
+         }
+      }//end while
+   }//end MainMenu
+
    public static void Greeting(){
-      System.out.println(
+      out().println(
          "\n\n*******************************************************\n" +
          "              User Interface      	               \n" +
          "*******************************************************\n");
@@ -403,12 +5704,21 @@ public class ProfNetwork {
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("\nPlease make your choice: ");
+         out().print("\nPlease make your choice: ");
+         String line;
+         try {
+            line = in.readLine();
+         }catch (IOException e) {
+            line = null;
+         }//end try
+         // the terminal or client went away, end the session.
+         if (line == null)
+            throw new SessionClosedException();
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            input = Integer.parseInt(line);
             break;
          }catch (Exception e) {
-            System.out.println("Your input is invalid!");
+            out().println("Your input is invalid!");
             continue;
          }//end try
       }while (true);
@@ -420,21 +5730,25 @@ public class ProfNetwork {
     * An empty block and contact list would be generated and associated with a user
     **/
    public static void CreateUser(ProfNetwork esql){
+      String outer = QueryStats.enter("CreateUser");
       try{
-         System.out.print("\tEnter user login: ");
+         out().print("\tEnter user login: ");
          String login = in.readLine();
-         System.out.print("\tEnter user password: ");
+         out().print("\tEnter user password: ");
          String password = in.readLine();
-         System.out.print("\tEnter user email: ");
+         out().print("\tEnter user email: ");
          String email = in.readLine();
 
 	 //Creating empty contact\block lists for a user
-	 String query = String.format("INSERT INTO USR (userId, password, email) VALUES ('%s','%s','%s')", login, password, email);
+	 String query = "INSERT INTO USR (userId, password, email) VALUES (?,?,?)";
 
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         esql.executeUpdate(query, login, password, email);
+         esql.getUserIndex().add(login, null);
+         out().println ("User successfully created!");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }//end
 
@@ -443,20 +5757,22 @@ public class ProfNetwork {
     * @return User login or null is the user does not exist
     **/
    public static String LogIn(ProfNetwork esql){
+      String outer = QueryStats.enter("LogIn");
       try{
-         System.out.print("\tEnter user login: ");
+         out().print("\tEnter user login: ");
          String login = in.readLine();
-         System.out.print("\tEnter user password: ");
+         out().print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userId = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+         String query = "SELECT 1 FROM USR WHERE userId = ? AND password = ?";
+	 if (esql.exists(query, login, password))
 		return login;
          return null;
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
          return null;
+      }finally{
+         QueryStats.exit(outer);
       }
    }//end
 
@@ -464,54 +5780,72 @@ public class ProfNetwork {
 
    //SEARCH SPACE
    public static void Search(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("Search");
       try{
-         System.out.println("Enter Username to search: ");
+         out().println("Enter Username to search: ");
          String search_name = in.readLine();
-         String query = String.format("Select * from usr where userId = '%s'", search_name);
-         int isValid = esql.executeQuery(query);
-         if (isValid > 0){
-            query = String.format("Select C.connectionid From USR U, CONNECTION_USR C Where U.userId = C.userId and C.userId = '%s' and C.connectionId = '%s' and C.status = 'Accept'", authorizedUser, search_name);
-            int isFriend = esql.executeQuery(query);
-            int userNum;
-
-            if (isFriend == 0){
-               System.out.println("\nProfile");
-               System.out.println("--------- ");
-               query = String.format("Select U.name From USR U Where U.userid = '%s'", search_name);
-               userNum = esql.executeQueryAndPrintResult(query);
-               System.out.println("---------");
-               System.out.println("Education");
-               System.out.println("---------");
-               query = String.format("Select instituitionname, major, degree, startdate, enddate From educational_details E Where E.userId = '%s'", search_name);
-               userNum = esql.executeQueryAndPrintResult(query);
-               System.out.println("---------------");
-               System.out.println("Work Experience");
-               System.out.println("---------------");
-               query = String.format("Select company, role, location, startDate, endDate From work_expr W Where W.userId = '%s'", search_name);
-               userNum = esql.executeQueryAndPrintResult(query);
-            }
-            else {
-               System.out.println("\nProfile");
-               System.out.println("--------- ");
-               query = String.format("Select name, dateOfBirth From USR U Where U.userid = '%s'", search_name);
-               userNum = esql.executeQueryAndPrintResult(query);
-               System.out.println("---------");
-               System.out.println("Education");
-               System.out.println("---------");
-               query = String.format("Select instituitionname, major, degree, startdate, enddate From educational_details E Where E.userId = '%s'", search_name);
-               userNum = esql.executeQueryAndPrintResult(query);
-               System.out.println("---------------");
-               System.out.println("Work Experience");
-               System.out.println("---------------");
-               query = String.format("Select company, role, location, startDate, endDate From work_expr W Where W.userId = '%s'", search_name);
-               userNum = esql.executeQueryAndPrintResult(query);
-            }
+         UserIndex index = esql.getUserIndex();
+         List<UserIndex.Match> matches = index.search(search_name, SEARCH_RESULTS);
+         boolean exact = !matches.isEmpty() && matches.get(0).userId.trim().equals(search_name.trim());
+         if (!exact){
+            // users created by another process or a later load are not indexed yet
+            List<String> names = esql.query("Select name from usr where userId = ?",
+               new RowMapper<String>() {
+                  public String mapRow (ResultSet rs, int rowNum) throws SQLException {
+                     return rs.getString(1);
+                  }
+               }, search_name);
+            if (!names.isEmpty()){
+               index.add(search_name, names.get(0));
+               exact = true;
+            }//end if
+         }//end if
+         if (!exact && matches.isEmpty()){
+            out().println("User account does not exist");
+            return;
+         }//end if
+         // an exact userId goes straight to the profile, as before
+         if (!exact){
+            List<String[]> rows = new ArrayList<String[]>();
+            for (UserIndex.Match match : matches)
+               rows.add(new String[]{ match.userId, match.name == null ? "" : match.name });
+            printRows(new String[]{ "userid", "name" }, rows);
+            out().println("\nInput userId to view (press enter to return): ");
+            search_name = in.readLine();
+            if (search_name.isEmpty())
+               return;
+         }//end if
+         Profile profile = ProfileLoader.load(esql, authorizedUser, search_name);
+         if (profile != null){
+            out().println("\nProfile");
+            out().println("--------- ");
+            // only friends get to see the date of birth
+            if (!profile.friend)
+               printRows(new String[]{ "name" }, profile.name);
+            else
+               printRows(new String[]{ "name", "dateofbirth" }, profile.name, profile.dateOfBirth);
+            out().println("---------");
+            out().println("Education");
+            out().println("---------");
+            profile.printEducation();
+            out().println("---------------");
+            out().println("Work Experience");
+            out().println("---------------");
+            profile.printWork();
+            if (!profile.friend && !profile.userId.equals(authorizedUser)){
+               out().println("\n1. Send Friend Request");
+               out().println("2. Return");
+               if (readChoice() == 1)
+                  SendRequest(esql, authorizedUser, profile.userId);
+            }//end if
          }
          else {
-            System.out.println("User account does not exist");
+            out().println("User account does not exist");
          }
       }catch(Exception e) {
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
@@ -519,30 +5853,41 @@ public class ProfNetwork {
 
    //FRIEND LIST
    public static void FriendList(ProfNetwork esql, String originalUser, String authorizedUser) {
+      String outer = QueryStats.enter("FriendList");
       try{
-         String query = String.format("Select connectionId from connection_usr where userId = '%s' and status = 'Accept' union Select userId from connection_usr where connectionId = '%s' and status = 'Accept'", authorizedUser, authorizedUser);
-         int userNum = esql.executeQueryAndPrintResult(query);
-         int empty_check = esql.executeQuery(query);
-         if (empty_check == 0){
-                System.out.println("No friends");
+         String query;
+         int userNum;
+         SessionCache cache = SessionCache.of(authorizedUser);
+         List<String[]> friends = cache == null ? null : cache.getFriends();
+         if (friends != null){
+            printRows(new String[]{ "connectionid" }, friends);
+            userNum = friends.size();
+            esql.roundTripsSaved("FriendList" + SESSION_CACHE, 1);
+         }else{
+            userNum = esql.executeQueryAndPrintResult(SessionCache.FRIENDS_QUERY, authorizedUser, authorizedUser);
+         }//end if
+         // the printed row count already says whether the list is empty
+         esql.roundTripsSaved("FriendList", 1);
+         if (userNum == 0){
+                out().println("No friends");
          }
          else{
-            System.out.println("Select Profile to View: ");
+            out().println("Select Profile to View: ");
             String friend_prof = in.readLine();
-            query = String.format("Select connectionId from connection_usr where userId = '%s' and status = 'Accept' union Select userId from connection_usr where connectionId = '%s' and status = 'Accept'", friend_prof, friend_prof);
-            int isFriend = esql.executeQuery(query);
-            if (isFriend == 0){
-               System.out.println("Entry not in Friends List!");
+            query = "Select 1 from connection_usr where status = 'Accept' and ((userId = ? and connectionId = ?) or (userId = ? and connectionId = ?))";
+            boolean isFriend = esql.exists(query, authorizedUser, friend_prof, friend_prof, authorizedUser);
+            if (!isFriend){
+               out().println("Entry not in Friends List!");
             }
             else {
                ViewProfile(esql, friend_prof);
                boolean friend_menu = true;
                while(friend_menu){
-                  System.out.println("Options");
-                  System.out.println("------------------");
-                  System.out.println("1. View Friends");
-                  System.out.println("2. Send Connection Request (Invalid over Connection level 3)");
-                  System.out.println("3. Return");
+                  out().println("Options");
+                  out().println("------------------");
+                  out().println("1. View Friends");
+                  out().println("2. Send Connection Request (Invalid over Connection level 3)");
+                  out().println("3. Return");
                   switch(readChoice()){
                      case 1: FriendList(esql, originalUser, friend_prof); break;
                      case 2: SendRequest(esql, originalUser, friend_prof); break;
@@ -552,7 +5897,9 @@ public class ProfNetwork {
             }
          }
       }catch(Exception e) {
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
@@ -561,16 +5908,20 @@ public class ProfNetwork {
    //viewProfile
 
    public static void ViewProfile(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("ViewProfile");
       try{
-         String query = String.format("Select userId, name, email, dateOfBirth From USR U Where U.userid = '%s'", authorizedUser);
-         int userNum = esql.executeQueryAndPrintResult(query);
-         query = String.format("Select instituitionname, major, degree, startdate, enddate From educational_details E Where E.userId = '%s'", authorizedUser);
-         userNum = esql.executeQueryAndPrintResult(query);
-         query = String.format("Select company, role, location, startDate, endDate From work_expr W Where W.userId = '%s'", authorizedUser);
-         userNum = esql.executeQueryAndPrintResult(query);
+         Profile profile = ProfileLoader.load(esql, authorizedUser, authorizedUser);
+         if (profile != null){
+            printRows(new String[]{ "userid", "name", "email", "dateofbirth" },
+                              profile.userId, profile.name, profile.email, profile.dateOfBirth);
+            profile.printEducation();
+            profile.printWork();
          }
+      }
       catch(Exception e) {
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
@@ -578,16 +5929,20 @@ public class ProfNetwork {
    
    //Password
    public static void UpdatePass(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("UpdatePass");
       try{
-         System.out.println("Enter old password: ");
+         out().println("Enter old password: ");
          String oldPass = in.readLine();
-         System.out.println("Enter new password: ");
+         out().println("Enter new password: ");
          String newPass = in.readLine();
-         String query = String.format("Update USR Set password = '%s' Where userId = '%s' and password = '%s'", newPass, authorizedUser, oldPass);
+         String query = "Update USR Set password = ? Where userId = ? and password = ?";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, newPass, authorizedUser, oldPass);
+         esql.getProfileCache().invalidate(authorizedUser);
       }catch(Exception e) {
-         System.err.println (e.getMessage());
+         err().println (e.getMessage());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
@@ -596,114 +5951,160 @@ public class ProfNetwork {
    
    //Add Educational Details
    public static void AddEdu(ProfNetwork esql, String authorizedUser) {
+         String outer = QueryStats.enter("AddEdu");
          try{
-            System.out.println("Enter Institution Name: ");
+            out().println("Enter Institution Name: ");
             String iname = in.readLine();
-            System.out.println("Enter Major: ");
+            out().println("Enter Major: ");
             String major = in.readLine();
-            System.out.println("Enter Degree: ");
+            out().println("Enter Degree: ");
             String degree = in.readLine();
-            System.out.println("Enter StartDate(YYYY-MM-DD): ");
+            out().println("Enter StartDate(YYYY-MM-DD): ");
             String sdate = in.readLine();
-            System.out.println("Enter EndDate(YYYY-MM-DD): ");
+            out().println("Enter EndDate(YYYY-MM-DD): ");
             String edate = in.readLine();
-	    System.out.println("\n");
-            String query = String.format("INSERT INTO educational_details (userId, instituitionName, major, degree, startdate, enddate) VALUES ('%s', '%s', '%s', '%s', '%s', '%s')", authorizedUser, iname, major, degree, sdate, edate);
-            esql.executeUpdate(query);
-	    String query1 = String.format("SELECT * FROM educational_details E where E.userid = '%s'", authorizedUser);
-	    int userNum = esql.executeQueryAndPrintResult(query1);	    
+	    out().println("\n");
+            String query = "INSERT INTO educational_details (userId, instituitionName, major, degree, startdate, enddate) VALUES (?, ?, ?, ?, CAST(? AS date), CAST(? AS date))";
+            esql.executeUpdate(query, authorizedUser, iname, major, degree, sdate, edate);
+            esql.getProfileCache().invalidate(authorizedUser);
+	    String query1 = "SELECT * FROM educational_details E where E.userid = ?";
+	    int userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);	    
          }catch(Exception e) {
-            System.err.println (e.getMessage());
+            err().println (e.getMessage());
+         }finally{
+            QueryStats.exit(outer);
          }
       }
 
    //Update Educational Details
    public static void UpdateEdu(ProfNetwork esql, String authorizedUser) {
+         String outer = QueryStats.enter("UpdateEdu");
          try{
-            String query1 = String.format("SELECT ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, instituitionname, major, degree, startdate, enddate FROM educational_details E WHERE E.userId = '%s'", authorizedUser);
-            int userNum = esql.executeQueryAndPrintResult(query1);
+            String query1 = "SELECT ROW_NUMBER() OVER(ORDER BY startdate, ctid) AS row_num, instituitionname, major, degree, startdate, enddate FROM educational_details E WHERE E.userId = ?";
+            int userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);
 
-            System.out.println("\n"); 
-            System.out.println("Choose which Row to edit: ");
-            String rownum = in.readLine();
-            String editquery;
+            out().println("\n"); 
+            out().println("Choose which Row to edit: ");
+            int rownum = Integer.parseInt(in.readLine());
+            // changed columns, applied together when the user saves
+            Map<String, String> changes = new LinkedHashMap<String, String>();
             boolean edit_menu = true;
 	    while(edit_menu){
-	    System.out.println("\n");
-            System.out.println("------------------------------");
-            System.out.println("Choose which attribute to edit: ");
-	    System.out.println("------------------------------");
-            System.out.println("1. Institution Name");
-            System.out.println("2. Major");
-            System.out.println("3. Degree");
-            System.out.println("4. Start Date");
-            System.out.println("5. End Date");
-            System.out.println("6. Exit to Education menu");
+	    out().println("\n");
+            out().println("------------------------------");
+            out().println("Choose which attribute to edit: ");
+	    out().println("------------------------------");
+            out().println("1. Institution Name");
+            out().println("2. Major");
+            out().println("3. Degree");
+            out().println("4. Start Date");
+            out().println("5. End Date");
+            out().println("6. Save changes and exit to Education menu");
+            out().println("7. Discard changes and exit to Education menu");
            
                switch(readChoice()){
- 		  case 1:
-                     System.out.println("Enter New Institution: ");
-                     String iname = in.readLine();
-                     editquery = String.format("WITH E1 as (Select userId, instituitionname, major, degree, startdate, enddate FROM(select ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, userId, instituitionname, major, degree, startdate, enddate FROM educational_details AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE educational_details SET instituitionName = '%s' FROM E1 WHERE educational_details.userId = E1.userId and educational_details.instituitionName = E1.instituitionName and educational_details.major = E1.major and educational_details.degree = E1.degree and educational_details.startdate = E1.startdate and educational_details.enddate = E1.endDate", authorizedUser, rownum, iname);
-                     esql.executeUpdate(editquery);
+                  case 1:
+                     out().println("Enter New Institution: ");
+                     changes.put("instituitionName", in.readLine());
                   break;
                   case 2:
-                     System.out.println("Enter New Major: ");
-                     String major = in.readLine();
-                     editquery = String.format("WITH E1 as (Select userId, instituitionname, major, degree, startdate, enddate FROM(select ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, userId, instituitionname, major, degree, startdate, enddate FROM educational_details AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE educational_details SET major = '%s' FROM E1 WHERE educational_details.userId = E1.userId and educational_details.instituitionName = E1.instituitionName and educational_details.major = E1.major and educational_details.degree = E1.degree and educational_details.startdate = E1.startdate and educational_details.enddate = E1.endDate", authorizedUser, rownum, major);
-                     esql.executeUpdate(editquery);
+                     out().println("Enter New Major: ");
+                     changes.put("major", in.readLine());
                   break;
                   case 3:
-                     System.out.println("Enter New Degree: ");
-                     String degree = in.readLine();
-                     editquery = String.format("WITH E1 as (Select userId, instituitionname, major, degree, startdate, enddate FROM(select ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, userId, instituitionname, major, degree, startdate, enddate FROM educational_details AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE educational_details SET degree = '%s' FROM E1 WHERE educational_details.userId = E1.userId and educational_details.instituitionName = E1.instituitionName and educational_details.major = E1.major and educational_details.degree = E1.degree and educational_details.startdate = E1.startdate and educational_details.enddate = E1.endDate", authorizedUser, rownum, degree);
-                     esql.executeUpdate(editquery);
+                     out().println("Enter New Degree: ");
+                     changes.put("degree", in.readLine());
                   break;
                   case 4:
-                     System.out.println("Enter New Start Date(YYYY-MM-DD): ");
-                     String sdate = in.readLine();
-                     editquery = String.format("WITH E1 as (Select userId, instituitionname, major, degree, startdate, enddate FROM(select ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, userId, instituitionname, major, degree, startdate, enddate FROM educational_details AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE educational_details SET startdate = '%s' FROM E1 WHERE educational_details.userId = E1.userId and educational_details.instituitionName = E1.instituitionName and educational_details.major = E1.major and educational_details.degree = E1.degree and educational_details.startdate = E1.startdate and educational_details.enddate = E1.endDate", authorizedUser, rownum, sdate);
-                     esql.executeUpdate(editquery);
+                     out().println("Enter New Start Date(YYYY-MM-DD): ");
+                     changes.put("startdate", in.readLine());
                   break;
                   case 5:
-                     System.out.println("Enter New End Date(YYYY-MM-DD): ");
-                     String edate = in.readLine();
-                     editquery = String.format("WITH E1 as (Select userId, instituitionname, major, degree, startdate, enddate FROM(select ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, userId, instituitionname, major, degree, startdate, enddate FROM educational_details AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE educational_details SET enddate = '%s' FROM E1 WHERE educational_details.userId = E1.userId and educational_details.instituitionName = E1.instituitionName and educational_details.major = E1.major and educational_details.degree = E1.degree and educational_details.startdate = E1.startdate and educational_details.enddate = E1.endDate", authorizedUser, rownum, edate);
-                     esql.executeUpdate(editquery);
+                     out().println("Enter New End Date(YYYY-MM-DD): ");
+                     changes.put("enddate", in.readLine());
+                  break;
+                  case 6:
+                     if (!changes.isEmpty()){
+                        int updated = EditRow(esql, "educational_details", authorizedUser, rownum, changes);
+                        esql.getProfileCache().invalidate(authorizedUser);
+                        out().println(updated == 0 ? "No such row" : "Changes saved!");
+                     }
+                     edit_menu = false;
                   break;
-		  case 6: edit_menu = false;
+		  case 7: edit_menu = false;
                   break;
                }
             }
             
          }catch(Exception e) {
-            System.err.println (e.getMessage());
+            err().println (e.getMessage());
+         }finally{
+            QueryStats.exit(outer);
          }
       }
  
 
+   /*
+    * Subquery resolving the row a user picked by its on-screen number to
+    * its ctid.  Rows are numbered by start date, then ctid, as in the
+    * listings, and the row is locked so the key stays valid until the
+    * surrounding statement is done.  Takes the userId and the row number.
+    **/
+   static String RowKeyQuery(String table) {
+      return "Select ctid from " + table + " where userId = ? order by startdate, ctid offset ? - 1 limit 1 for update";
+   }
+
+   /*
+    * Applies every changed column of one education or work row in a single
+    * UPDATE.  The row is resolved by RowKeyQuery inside the same statement,
+    * so the whole edit is one indexed lookup in one transaction.
+    * @return the number of rows updated
+    **/
+   static int EditRow(ProfNetwork esql, String table, String authorizedUser, int rownum, Map<String, String> changes) throws SQLException {
+      StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+      List<Object> params = new ArrayList<Object>();
+      for (Map.Entry<String, String> change : changes.entrySet()){
+         if (!params.isEmpty())
+            sql.append(", ");
+         String column = change.getKey();
+         sql.append(column).append(column.toLowerCase().endsWith("date") ? " = CAST(? AS date)" : " = ?");
+         params.add(change.getValue());
+      }//end for
+      sql.append(" WHERE ctid = (").append(RowKeyQuery(table)).append(")");
+      params.add(authorizedUser);
+      params.add(rownum);
+      return esql.executeUpdate(sql.toString(), params.toArray());
+   }
+
     //Delete Educational Details  
    public static void DeleteEdu(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("DeleteEdu");
       try{
-         String query1 = String.format("SELECT ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, instituitionname, major, degree, startdate, enddate FROM educational_details E WHERE E.userId = '%s'", authorizedUser);
-         int userNum = esql.executeQueryAndPrintResult(query1);
-         System.out.println("Choose which Row to delete: ");
-         String rownum = in.readLine();
-         String editquery = String.format("WITH E1 as (Select userId, instituitionname, major, degree, startdate, enddate FROM(select ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, userId, instituitionname, major, degree, startdate, enddate FROM educational_details AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') DELETE FROM educational_details USING E1 WHERE educational_details.userId = E1.userId and educational_details.instituitionName = E1.instituitionName and educational_details.major = E1.major and educational_details.degree = E1.degree and educational_details.startdate = E1.startdate and educational_details.enddate = E1.endDate", authorizedUser, rownum);
-         esql.executeUpdate(editquery);
+         String query1 = "SELECT ROW_NUMBER() OVER(ORDER BY startdate, ctid) AS row_num, instituitionname, major, degree, startdate, enddate FROM educational_details E WHERE E.userId = ?";
+         int userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);
+         out().println("Choose which Row to delete: ");
+         int rownum = Integer.parseInt(in.readLine());
+         String editquery = "DELETE FROM educational_details WHERE ctid = (" + RowKeyQuery("educational_details") + ")";
+         esql.executeUpdate(editquery, authorizedUser, rownum);
+         esql.getProfileCache().invalidate(authorizedUser);
       }catch(Exception e) {
-         System.err.println (e.getMessage());
+         err().println (e.getMessage());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
 
     //View Educational Details 
    public static void ViewEdu(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("ViewEdu");
       try{
-         String query = String.format("SELECT ROW_NUMBER() OVER(ORDER BY startdate) AS row_num, instituitionname, major, degree, startdate, enddate FROM educational_details E WHERE E.userId = '%s'", authorizedUser);
-         int usernum = esql.executeQueryAndPrintResult(query);
+         String query = "SELECT ROW_NUMBER() OVER(ORDER BY startdate, ctid) AS row_num, instituitionname, major, degree, startdate, enddate FROM educational_details E WHERE E.userId = ?";
+         int usernum = esql.executeQueryAndPrintResult(query, authorizedUser);
       }catch(Exception e) {
-         System.err.println (e.getMessage());
+         err().println (e.getMessage());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
@@ -712,113 +6113,127 @@ public class ProfNetwork {
     
     //Add work experience 
     public static void AddExp(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("AddExp");
       try{
-         System.out.println("Enter Company Name: ");
+         out().println("Enter Company Name: ");
          String company = in.readLine();
-         System.out.println("Enter Role: ");
+         out().println("Enter Role: ");
          String role = in.readLine();
-         System.out.println("Enter Location: ");
+         out().println("Enter Location: ");
          String location = in.readLine();
-         System.out.println("Enter StartDate(YYYY-MM-DD): ");
+         out().println("Enter StartDate(YYYY-MM-DD): ");
          String sdate = in.readLine();
-         System.out.println("Enter EndDate(YYYY-MM-DD): ");
+         out().println("Enter EndDate(YYYY-MM-DD): ");
          String edate = in.readLine();
-         String query = String.format("INSERT INTO work_expr (userId, company, role, location, startDate, endDate) VALUES ('%s', '%s', '%s', '%s', '%s', '%s')", authorizedUser, company, role, location, sdate, edate);
-         esql.executeUpdate(query);
-	 String query1 = String.format("SELECT * FROM work_expr W where W.userid = '%s'", authorizedUser);
-         int userNum = esql.executeQueryAndPrintResult(query1);
+         String query = "INSERT INTO work_expr (userId, company, role, location, startDate, endDate) VALUES (?, ?, ?, ?, CAST(? AS date), CAST(? AS date))";
+         esql.executeUpdate(query, authorizedUser, company, role, location, sdate, edate);
+         esql.getProfileCache().invalidate(authorizedUser);
+	 String query1 = "SELECT * FROM work_expr W where W.userid = ?";
+         int userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);
       }catch(Exception e) {
-         System.err.println (e.getMessage());
+         err().println (e.getMessage());
+      }finally{
+         QueryStats.exit(outer);
       }
    } 
  
    //Update work experience
    public static void UpdateExp(ProfNetwork esql, String authorizedUser) {
-      try{
-         System.out.println("\n");
-         String query1 = String.format("SELECT ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, company, role, location, startDate, endDate FROM work_expr E WHERE E.userId = '%s'", authorizedUser);
-         int userNum = esql.executeQueryAndPrintResult(query1);
-	 System.out.println("\n");
-         System.out.println("Choose which Row to edit: ");
-         String rownum = in.readLine();
-         String editquery;
-         boolean edit_menu = true;
-         while(edit_menu){
-         System.out.println("\n");
-         System.out.println("------------------------------");
-         System.out.println("Choose which attribute to edit: ");
-         System.out.println("------------------------------");
-         System.out.println("1. Company Name");
-         System.out.println("2. Role");
-         System.out.println("3. Location");
-         System.out.println("4. Start Date");
-         System.out.println("5. End Date");
-         System.out.println("6. Exit to Work Experience menu");
+         String outer = QueryStats.enter("UpdateExp");
+         try{
+            String query1 = "SELECT ROW_NUMBER() OVER(ORDER BY startDate, ctid) AS row_num, company, role, location, startDate, endDate FROM work_expr E WHERE E.userId = ?";
+            int userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);
 
-            switch(readChoice()){
-               case 1:
-                  System.out.println("Enter New Company: ");
-                  String company = in.readLine();
-                  editquery = String.format("WITH E1 as (Select userId, company, role, location, startDate, endDate FROM(select ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, userId, company, role, location, startDate, endDate FROM work_expr AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE work_expr SET company = '%s' FROM E1 WHERE work_expr.userId = E1.userId and work_expr.company = E1.company and work_expr.role = E1.role and work_expr.location = E1.location and work_expr.startDate = E1.startDate and work_expr.endDate = E1.endDate", authorizedUser, rownum, company);
-                  esql.executeUpdate(editquery);
-               break;
-               case 2:
-                  System.out.println("Enter New Role: ");
-                  String role = in.readLine();
-                  editquery = String.format("WITH E1 as (Select userId, company, role, location, startDate, endDate FROM(select ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, userId, company, role, location, startDate, endDate FROM work_expr AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE work_expr SET role = '%s' FROM E1 WHERE work_expr.userId = E1.userId and work_expr.company = E1.company and work_expr.role = E1.role and work_expr.location = E1.location and work_expr.startDate = E1.startDate and work_expr.endDate = E1.endDate", authorizedUser, rownum, role);
-                  esql.executeUpdate(editquery);
-               break;
-               case 3:
-                  System.out.println("Enter New Location: ");
-                  String location = in.readLine();
-                  editquery = String.format("WITH E1 as (Select userId, company, role, location, startDate, endDate FROM(select ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, userId, company, role, location, startDate, endDate FROM work_expr AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE work_expr SET location = '%s' FROM E1 WHERE work_expr.userId = E1.userId and work_expr.company = E1.company and work_expr.role = E1.role and work_expr.location = E1.location and work_expr.startDate = E1.startDate and work_expr.endDate = E1.endDate", authorizedUser, rownum, location);
-                  esql.executeUpdate(editquery);
-               break;
-               case 4:
-                  System.out.println("Enter New Start Date(YYYY-MM-DD): ");
-                  String sdate = in.readLine();
-                  editquery = String.format("WITH E1 as (Select userId, company, role, location, startDate, endDate FROM(select ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, userId, company, role, location, startDate, endDate FROM work_expr AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE work_expr SET startDate = '%s' FROM E1 WHERE work_expr.userId = E1.userId and work_expr.company = E1.company and work_expr.role = E1.role and work_expr.location = E1.location and work_expr.startDate = E1.startDate and work_expr.endDate = E1.endDate", authorizedUser, rownum, sdate);
-                  esql.executeUpdate(editquery);
-               break;
-               case 5:
-                  System.out.println("Enter New End Date(YYYY-MM-DD): ");
-                  String edate = in.readLine();
-                  editquery = String.format("WITH E1 as (Select userId, company, role, location, startDate, endDate FROM(select ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, userId, company, role, location, startDate, endDate FROM work_expr AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') UPDATE work_expr SET endDate = '%s' FROM E1 WHERE work_expr.userId = E1.userId and work_expr.company = E1.company and work_expr.role = E1.role and work_expr.location = E1.location and work_expr.startDate = E1.startDate and work_expr.endDate = E1.endDate", authorizedUser, rownum, edate);
-                  esql.executeUpdate(editquery);
-               break;
-               case 6: edit_menu = false;
-               break;
+            out().println("\n"); 
+            out().println("Choose which Row to edit: ");
+            int rownum = Integer.parseInt(in.readLine());
+            // changed columns, applied together when the user saves
+            Map<String, String> changes = new LinkedHashMap<String, String>();
+            boolean edit_menu = true;
+	    while(edit_menu){
+	    out().println("\n");
+            out().println("------------------------------");
+            out().println("Choose which attribute to edit: ");
+	    out().println("------------------------------");
+            out().println("1. Company Name");
+            out().println("2. Role");
+            out().println("3. Location");
+            out().println("4. Start Date");
+            out().println("5. End Date");
+            out().println("6. Save changes and exit to Work Experience menu");
+            out().println("7. Discard changes and exit to Work Experience menu");
+           
+               switch(readChoice()){
+                  case 1:
+                     out().println("Enter New Company: ");
+                     changes.put("company", in.readLine());
+                  break;
+                  case 2:
+                     out().println("Enter New Role: ");
+                     changes.put("role", in.readLine());
+                  break;
+                  case 3:
+                     out().println("Enter New Location: ");
+                     changes.put("location", in.readLine());
+                  break;
+                  case 4:
+                     out().println("Enter New Start Date(YYYY-MM-DD): ");
+                     changes.put("startDate", in.readLine());
+                  break;
+                  case 5:
+                     out().println("Enter New End Date(YYYY-MM-DD): ");
+                     changes.put("endDate", in.readLine());
+                  break;
+                  case 6:
+                     if (!changes.isEmpty()){
+                        int updated = EditRow(esql, "work_expr", authorizedUser, rownum, changes);
+                        esql.getProfileCache().invalidate(authorizedUser);
+                        out().println(updated == 0 ? "No such row" : "Changes saved!");
+                     }
+                     edit_menu = false;
+                  break;
+		  case 7: edit_menu = false;
+                  break;
+               }
             }
+            
+         }catch(Exception e) {
+            err().println (e.getMessage());
+         }finally{
+            QueryStats.exit(outer);
          }
-
-      }catch(Exception e) {
-         System.err.println (e.getMessage());
       }
-   }
    
 
    //Delete work experience
    public static void DeleteExp(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("DeleteExp");
       try{
-         String query1 = String.format("SELECT ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, company, role, location, startDate, endDate FROM work_expr E WHERE E.userId = '%s'", authorizedUser);
-         int userNum = esql.executeQueryAndPrintResult(query1);
-         System.out.println("Choose which Row to delete: ");
-         String rownum = in.readLine();
-         String editquery = String.format("WITH E1 as (Select userId, company, role, location, startDate, endDate FROM(select ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, userId, company, role, location, startDate, endDate FROM work_expr AS E2 WHERE E2.userId = '%s') AS derived WHERE row_num = '%s') DELETE FROM work_expr USING E1 WHERE work_expr.userId = E1.userId and work_expr.company = E1.company and work_expr.role = E1.role and work_expr.location = E1.location and work_expr.startDate = E1.startDate and work_expr.endDate = E1.endDate", authorizedUser, rownum);
-         esql.executeUpdate(editquery);
+         String query1 = "SELECT ROW_NUMBER() OVER(ORDER BY startDate, ctid) AS row_num, company, role, location, startDate, endDate FROM work_expr E WHERE E.userId = ?";
+         int userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);
+         out().println("Choose which Row to delete: ");
+         int rownum = Integer.parseInt(in.readLine());
+         String editquery = "DELETE FROM work_expr WHERE ctid = (" + RowKeyQuery("work_expr") + ")";
+         esql.executeUpdate(editquery, authorizedUser, rownum);
+         esql.getProfileCache().invalidate(authorizedUser);
       }catch(Exception e) {
-         System.err.println (e.getMessage());
+         err().println (e.getMessage());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
     
 
    //View work experience
    public static void ViewExp(ProfNetwork esql, String authorizedUser) {
+      String outer = QueryStats.enter("ViewExp");
       try{
-         String query = String.format("SELECT ROW_NUMBER() OVER(ORDER BY startDate) AS row_num, company, role, location, startDate, endDate FROM work_expr E WHERE E.userId = '%s'", authorizedUser);
-         int usernum = esql.executeQueryAndPrintResult(query);
+         String query = "SELECT ROW_NUMBER() OVER(ORDER BY startDate, ctid) AS row_num, company, role, location, startDate, endDate FROM work_expr E WHERE E.userId = ?";
+         int usernum = esql.executeQueryAndPrintResult(query, authorizedUser);
       }catch(Exception e) {
-         System.err.println (e.getMessage());
+         err().println (e.getMessage());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
@@ -828,10 +6243,13 @@ public class ProfNetwork {
 
    //end of update and profile menu
    public static void NewMessage(ProfNetwork esql){
+      String outer = QueryStats.enter("NewMessage");
       try{
-         System.out.println("In the works");
+         out().println("In the works");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
@@ -840,278 +6258,355 @@ public class ProfNetwork {
    //search and send
    
    public static void SearchandSendRequest(ProfNetwork esql, String authorizedUser){
+      String outer = QueryStats.enter("SearchandSendRequest");
       try{
-         System.out.println("\nEnter Username to Request: ");
+         out().println("\nEnter Username to Request: ");
          String username = in.readLine();
          SendRequest(esql, authorizedUser, username);
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
    public static void SendRequest(ProfNetwork esql, String authorizedUser, String receiverId){
+      String outer = QueryStats.enter("SendRequest");
       try{
-         String dropViews = "drop view if exists A, U, W, M, N";
-         esql.executeUpdate(dropViews);
-         String create_A = String.format("create view A as Select connectionId from CONNECTION_USR where userId = '%s' and status = 'Accept' union Select userId from CONNECTION_USR where connectionId = '%s' and status = 'Accept'", authorizedUser, authorizedUser);
-         esql.executeUpdate(create_A);
-         String create_U = String.format("create view U as Select C.userId from CONNECTION_USR C, A where C.connectionId = A.connectionId and C.status = 'Accept' and  C.connectionId <> '%s' and C.userId <> '%s'", authorizedUser, authorizedUser);
-         esql.executeUpdate(create_U);
-         String create_W = String.format("create view W as Select C.userId from CONNECTION_USR C, U where C.connectionId = U.userId and C.status = 'Accept' and  C.connectionId <> '%s'", authorizedUser);
-         esql.executeUpdate(create_W);
-         String create_M = "create view M as Select * from A union Select * from U";
-         esql.executeUpdate(create_M);
-         String create_N = "create view N as Select * from M union select * from W";
-         esql.executeUpdate(create_N);
-         String query = String.format("Select * from N where connectionId = '%s'", receiverId); 
-         int userNum = esql.executeQuery(query);
-         if (userNum == 1){
-            String send_request = String.format("Insert into connection_usr Values('%s', '%s', 'Request')", authorizedUser, receiverId);
-            esql.executeUpdate(send_request);
+         // receivers up to three connections away may be requested
+         boolean inRange = esql.getConnectionGraph().isWithinHops(authorizedUser, receiverId, 3);
+         if (inRange){
+            String send_request = "Insert into connection_usr Values(?, ?, 'Request')";
+            esql.executeUpdate(send_request, authorizedUser, receiverId);
+            esql.getConnectionGraph().addRequest(authorizedUser, receiverId);
             send_request = String.format("\nRequest to '%s' sent!", receiverId);
-            System.out.println(send_request);
+            out().println(send_request);
          }
          else {
-            System.out.println("User is beyond connection level");
+            out().println("User is beyond connection level");
          }
-        esql.executeUpdate(dropViews);
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }   
+   /**
+    * Lists the users sharing the most connections with the logged in user
+    * and lets them send a request to one of them.
+    */
+   public static void PeopleYouMayKnow(ProfNetwork esql, String authorizedUser){
+      String outer = QueryStats.enter("PeopleYouMayKnow");
+      try{
+         List<Recommendation> people = esql.getConnectionGraph().recommend(authorizedUser, RECOMMENDATIONS);
+         if (people.isEmpty()){
+            out().println("No suggestions yet, connect with more people first");
+            return;
+         }//end if
+         List<String[]> rows = new ArrayList<String[]>();
+         for (Recommendation person : people)
+            rows.add(new String[]{ person.userId, String.valueOf(person.mutual) });
+         printRows(new String[]{ "userid", "mutual connections" }, rows);
+         out().println("\nInput userId to send a request (press enter to return): ");
+         String receiverId = in.readLine();
+         for (Recommendation person : people){
+            if (person.userId.equals(receiverId)){
+               SendRequest(esql, authorizedUser, receiverId);
+               return;
+            }//end if
+         }//end for
+         if (!receiverId.isEmpty())
+            out().println("Invalid Username");
+      }catch(Exception e){
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
+      }
+   }
+
    //accept or reject request
    public static void ActionRequest(ProfNetwork esql, String authorizedUser){
+      String outer = QueryStats.enter("ActionRequest");
       try{
-         System.out.println("-----------------------------");
-         String query1 = String.format("select ROW_NUMBER() OVER(ORDER BY userId) AS row_num, userId, status FROM connection_usr AS E2 WHERE E2.connectionId = '%s' and E2.status = 'Request'", authorizedUser);
-         int userNum = esql.executeQueryAndPrintResult(query1);
-	 userNum = esql.executeQuery(query1);
+         out().println("-----------------------------");
+         String query1 = SessionCache.PENDING_QUERY;
+         int userNum;
+         SessionCache cache = SessionCache.of(authorizedUser);
+         List<String[]> pending = cache == null ? null : cache.getPendingRequests();
+         if (pending != null){
+            printRows(new String[]{ "row_num", "userid", "status" }, pending);
+            userNum = pending.size();
+            esql.roundTripsSaved("ActionRequest" + SESSION_CACHE, 1);
+         }else{
+            userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);
+         }//end if
+         esql.roundTripsSaved("ActionRequest", 1);
 
          if (userNum != 0){
             boolean retry = true;
             do {
 	       if (userNum == 0){break;} 
-               System.out.println("\nChoose Username to accept or reject(Type 'back' return to Friend Request Menu): ");
+               out().println("\nChoose Username to accept or reject(Type 'back' return to Friend Request Menu): ");
                String sender = in.readLine();
-	       String validkey = String.format("select ROW_NUMBER() OVER(ORDER BY userId) AS row_num, userId, status FROM connection_usr AS E2 WHERE E2.userId = '%s' and E2.status = 'Request'", sender);
-               int isValid = esql.executeQuery(validkey);
-
-               if (isValid > 0){
-		  System.out.println("\nOptions");
-                  System.out.println("---------");
-                  System.out.println("1. Accept");
-                  System.out.println("2. Reject");
+	       String validkey = "Select 1 FROM connection_usr AS E2 WHERE E2.userId = ? and E2.connectionId = ? and E2.status = 'Request'";
+               boolean isValid = esql.exists(validkey, sender, authorizedUser);
+
+               if (isValid){
+		  out().println("\nOptions");
+                  out().println("---------");
+                  out().println("1. Accept");
+                  out().println("2. Reject");
                   switch(readChoice()){
-                        case 1: query1 = String.format("Update Connection_Usr Set status = 'Accept' Where connectionId = '%s' and userId = '%s' and status = 'Request'", authorizedUser, sender);
-                              esql.executeUpdate(query1);
-			      System.out.println("Friend Accepted!");
+                        case 1: query1 = "Update Connection_Usr Set status = 'Accept' Where connectionId = ? and userId = ? and status = 'Request'";
+                              esql.executeUpdate(query1, authorizedUser, sender);
+                              esql.getConnectionGraph().addConnection(sender, authorizedUser);
+                              if (cache != null){
+                                 cache.refreshFriends();
+                                 cache.refreshRequests();
+                              }//end if
+			      out().println("Friend Accepted!");
                               break;
-                        case 2: query1 = String.format("Update Connection_Usr Set status = 'Reject' Where connectionId = '%s' and userId = '%s' and status = 'Request'", authorizedUser, sender);
-                              esql.executeUpdate(query1);
+                        case 2: query1 = "Update Connection_Usr Set status = 'Reject' Where connectionId = ? and userId = ? and status = 'Request'";
+                              esql.executeUpdate(query1, authorizedUser, sender);
+                              esql.getConnectionGraph().removeRequest(sender, authorizedUser);
+                              if (cache != null)
+                                 cache.refreshRequests();
                               break;
                   }
-		  System.out.println("-----------------------------");
-         	  query1 = String.format("select ROW_NUMBER() OVER(ORDER BY userId) AS row_num, userId, status FROM connection_usr AS E2 WHERE E2.connectionId = '%s' and E2.status = 'Request'", authorizedUser);
-                  userNum = esql.executeQueryAndPrintResult(query1);	  
+		  out().println("-----------------------------");
+         	  query1 = "select ROW_NUMBER() OVER(ORDER BY userId) AS row_num, userId, status FROM connection_usr AS E2 WHERE E2.connectionId = ? and E2.status = 'Request'";
+                  userNum = esql.executeQueryAndPrintResult(query1, authorizedUser);	  
                }
                else if(sender.equalsIgnoreCase("back")){
                   retry = false; 
                }
                else{
-                  System.out.println("Invalid Input please try again");
+                  out().println("Invalid Input please try again");
                }  
             }
             while(retry);
-	    System.out.println("You have no outstanding requests");
+	    out().println("You have no outstanding requests");
          }
          else {
-            System.out.println("You have no outstanding requests"); 
+            out().println("You have no outstanding requests"); 
          }
 
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
   
 
   //Messages
    public static void ViewMessages(ProfNetwork esql, String authorizedUser){
+      String outer = QueryStats.enter("ViewMessages");
       try{
          String query;
          int userNum;
+         Mailbox box;
          boolean send_receive = true;
          while(send_receive){
-            System.out.println("\n1. View Outgoing Messages");
-            System.out.println("2. View Unread Messages");
-            System.out.println("3. View Read Messages");
-            System.out.println("4. Return to Message Menu");
+            out().println("\n1. View Outgoing Messages");
+            out().println("2. View Unread Messages");
+            out().println("3. View Read Messages");
+            out().println("4. Return to Message Menu");
 	    switch(readChoice()){
-	       case 1: query = String.format("Select msgId, receiverId, contents, sendTime from message where senderId = '%s' and deleteStatus <> 1 and status <> 'Draft' intersect Select msgId, receiverId, contents, sendTime from message where senderId = '%s' and deleteStatus <> 3 and status <> 'Draft' Order by sendTime", authorizedUser, authorizedUser);
-                       userNum = esql.executeQueryAndPrintResult(query); 
-                       if (userNum != 0){
-                           System.out.println("1. Delete Message");
-			   System.out.println("2. Return");
+	       case 1: box = new Mailbox(esql, "msgId, receiverId, contents, sendTime", "senderId = ? and deleteStatus not in (1, 3) and status <> 'Draft'", authorizedUser);
+                       userNum = box.first();
+                       if (userNum == 0){
+                        out().println("No Outgoing messages");
+                       }
+                       while (userNum != 0){
+                           out().println("1. Delete Message");
+			   out().println("2. Return");
+                           box.printPageOptions(3);
                            String input = in.readLine();
                            if (input.equals("1")){
-                              System.out.println("Input Message ID to delete: ");
+                              out().println("Input Message ID to delete: ");
                               input = in.readLine();
-                              query = String.format("Update message set deleteStatus = 1 where msgId = '%s' and deleteStatus = 0 and senderId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
-                              query = String.format("Update message set deleteStatus = 3 where msgId = '%s' and deleteStatus = 2 and senderId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
-                              System.out.println("Deletion Successful!");
+                              query = "Update message set deleteStatus = 1 where msgId = ? and deleteStatus = 0 and senderId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              query = "Update message set deleteStatus = 3 where msgId = ? and deleteStatus = 2 and senderId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              out().println("Deletion Successful!");
+                              userNum = 0;
                            }
-                           else {
-                              System.out.println("Invalid Option (loop later)");
+                           else if (input.equals("2")){
+                              userNum = 0;
+                           }
+                           else if (!box.turnPage(input, 3)){
+                              out().println("Invalid Option");
                            }
-                       }
-                       else{
-                        System.out.println("No Outgoing messages");
                        }
                         break;
-	       case 2: query = String.format("Select msgId, senderId, sendTime from message where receiverId = '%s' and deleteStatus <> 2 and status = 'Delivered' intersect Select msgId, senderId, sendTime from message where receiverId = '%s' and deleteStatus <> 3 and status = 'Delivered' Order by sendTime", authorizedUser, authorizedUser);
-                       userNum = esql.executeQueryAndPrintResult(query); 
-                       if (userNum != 0){
-                           System.out.println("\n1. View Message");
-                           System.out.println("2. Delete Message");
-                           System.out.println("3. Return");
+	       case 2: box = new Mailbox(esql, "msgId, senderId, sendTime", "receiverId = ? and deleteStatus not in (2, 3) and status = 'Delivered'", authorizedUser);
+                       userNum = box.first();
+                       if (userNum == 0){
+                           out().println("No unread messages");
+                       }
+                       while (userNum != 0){
+                           out().println("\n1. View Message");
+                           out().println("2. Delete Message");
+                           out().println("3. Return");
+                           box.printPageOptions(4);
 			   String input = in.readLine();
                            if (input.equals("1")){
-                              System.out.println("Input Message ID to open: ");
+                              out().println("Input Message ID to open: ");
                               input = in.readLine();
-                              query = String.format("Select contents from message where msgId = '%s' and receiverId = '%s' and deleteStatus <> 2 and status = 'Delivered' intersect Select contents from message where msgId = '%s' and receiverId = '%s' and deleteStatus <> 3 and status = 'Delivered'", input, authorizedUser, input, authorizedUser);
-                              userNum = esql.executeQueryAndPrintResult(query);
-                              query = String.format("Update message set status = 'Read' where msgId = '%s' and receiverId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
+                              query = "Select contents from message where msgId = ? and receiverId = ? and deleteStatus not in (2, 3) and status = 'Delivered'";
+                              esql.executeQueryAndPrintResult(query, Integer.parseInt(input), authorizedUser);
+                              query = "Update message set status = 'Read' where msgId = ? and receiverId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              userNum = 0;
                            }
                            else if (input.equals("2")){
-                              System.out.println("Input Message ID to delete: ");
+                              out().println("Input Message ID to delete: ");
                               input = in.readLine();
-                              query = String.format("Update message set deleteStatus = 2 where msgId = '%s' and deleteStatus = 0 and receiverId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
-                              query = String.format("Update message set deleteStatus = 3 where msgId = '%s' and deleteStatus = 1 and receiverId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
-			      System.out.println("Deletion Successful!");
+                              query = "Update message set deleteStatus = 2 where msgId = ? and deleteStatus = 0 and receiverId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              query = "Update message set deleteStatus = 3 where msgId = ? and deleteStatus = 1 and receiverId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+			      out().println("Deletion Successful!");
+                              userNum = 0;
                            }
-                           else {
-                              System.out.println("Invalid Option (loop later)");
+                           else if (input.equals("3")){
+                              userNum = 0;
+                           }
+                           else if (!box.turnPage(input, 4)){
+                              out().println("Invalid Option");
                            }
                        }
-                        else {
-                           System.out.println("No unread messages");
-                        }                         
                        break;
-	       case 3: query = String.format("Select msgId, senderId, contents, sendTime from message where receiverId = '%s' and deleteStatus <> 2 and status = 'Read' intersect Select msgId, senderId, contents, sendTime from message where receiverId = '%s' and deleteStatus <> 3 and status = 'Read' Order by sendTime", authorizedUser, authorizedUser);
-                       userNum = esql.executeQueryAndPrintResult(query);
-                       if (userNum != 0){
-                           System.out.println("1. Delete Message\n");
-			   System.out.println("2. Return");
+	       case 3: box = new Mailbox(esql, "msgId, senderId, contents, sendTime", "receiverId = ? and deleteStatus not in (2, 3) and status = 'Read'", authorizedUser);
+                       userNum = box.first();
+                       if (userNum == 0){
+                        out().println("No Read messages");
+                       }
+                       while (userNum != 0){
+                           out().println("1. Delete Message\n");
+			   out().println("2. Return");
+                           box.printPageOptions(3);
                            String input = in.readLine();
                            if (input.equals("1")){
-                              System.out.println("Input Message ID to delete: ");
+                              out().println("Input Message ID to delete: ");
                               input = in.readLine();
-                              query = String.format("Update message set deleteStatus = 2 where msgId = '%s' and deleteStatus = 0 and receiverId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
-                              query = String.format("Update message set deleteStatus = 3 where msgId = '%s' and deleteStatus = 1 and receiverId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
-                              System.out.println("Deletion Successful!");
+                              query = "Update message set deleteStatus = 2 where msgId = ? and deleteStatus = 0 and receiverId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              query = "Update message set deleteStatus = 3 where msgId = ? and deleteStatus = 1 and receiverId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              out().println("Deletion Successful!");
+                              userNum = 0;
                            }
-                           else {
-                              System.out.println("Invalid Option (loop later)");
+                           else if (input.equals("2")){
+                              userNum = 0;
+                           }
+                           else if (!box.turnPage(input, 3)){
+                              out().println("Invalid Option");
                            }
-                       }
-                       else{
-                        System.out.println("No Read messages");
                        }
                         break;
                case 4: send_receive = false; break;
             }
          }
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 
    public static void SendMessages(ProfNetwork esql, String authorizedUser){
+      String outer = QueryStats.enter("SendMessages");
       try{  
+         SessionCache cache = SessionCache.of(authorizedUser);
          boolean send_messages = true;
          while (send_messages){
-            System.out.println("1. Compose New Message");
-            System.out.println("2. View Drafts");
-            System.out.println("3. Return");
+            out().println("1. Compose New Message");
+            out().println("2. View Drafts");
+            out().println("3. Return");
             switch(readChoice()){
-               case 1: System.out.println("Input receiver userId: ");
+               case 1: out().println("Input receiver userId: ");
                        String input = in.readLine();
-                       String query = String.format("Select * from usr where userId = '%s'", input);
-                       int isValid = esql.executeQuery(query);
-                       if (isValid > 0){
-                           System.out.println("\nWrite New Message:\n");
+                       String query = "Select 1 from usr where userId = ?";
+                       boolean isValid = esql.exists(query, input);
+                       if (isValid){
+                           out().println("\nWrite New Message:\n");
                            String message = in.readLine();
                            if (!message.isEmpty()){
-                              System.out.println("1. Send Message");
-                              System.out.println("2. Send to Drafts");
-                              System.out.println("press any other key to exit");
+                              out().println("1. Send Message");
+                              out().println("2. Send to Drafts");
+                              out().println("press any other key to exit");
                               String menu_input = in.readLine();
                               if (menu_input.equals("1")){
-                                 query = "Select COUNT(*) from Message";
-                                 List<List<String>> curr_size = esql.executeQueryAndReturnResult(query);
-				 int max = Integer.parseInt(curr_size.get(0).get(0));
-                                 System.out.println("current size is:" + max);
-                                 query = String.format("Insert into Message Values('%s', '%s', '%s', '%s', current_timestamp, 0, 'Sent')", max + 2, authorizedUser, input, message);
-                                 esql.executeUpdate(query);
-                                 System.out.println("Message successfully sent!");
+                                 esql.getMessageSender().send(authorizedUser, input, message, "Sent").get(MessageSender.SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                                 out().println("Message successfully sent!");
                               }
                               else if (menu_input.equals("2")){
-				 query = "Select COUNT(*) from Message";
-                                 List<List<String>> curr_size = esql.executeQueryAndReturnResult(query);
-                                 int max = Integer.parseInt(curr_size.get(0).get(0));
-                                 query = String.format("Insert into Message Values('%s', '%s', '%s', '%s', current_timestamp, 0, 'Draft')", max + 2, authorizedUser, input, message);
-                                 esql.executeUpdate(query);
-                                 System.out.println("Successfully drafted!");
+                                 esql.getMessageSender().send(authorizedUser, input, message, "Draft").get(MessageSender.SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                                 if (cache != null)
+                                    cache.refreshMessages();
+                                 out().println("Successfully drafted!");
                               }
                            }
                            else {
-                              System.out.println("Invalid Message");
+                              out().println("Invalid Message");
                            }
                         }
                         else{
-                           System.out.println("Invalid Username");
+                           out().println("Invalid Username");
                         }
                         break; 
 
-               case 2:  query = String.format("Select msgId, receiverId, contents, sendTime from message where senderId = '%s' and deleteStatus <> 1 and status = 'Draft'", authorizedUser);
-                        int userNum = esql.executeQueryAndPrintResult(query);        
+               case 2:  List<String[]> drafts = cache == null ? null : cache.getDrafts();
+                        int userNum;
+                        if (drafts != null){
+                           printRows(new String[]{ "msgid", "receiverid", "contents", "sendtime" }, drafts);
+                           userNum = drafts.size();
+                           esql.roundTripsSaved("SendMessages" + SESSION_CACHE, 1);
+                        }else{
+                           userNum = esql.executeQueryAndPrintResult(SessionCache.DRAFTS_QUERY, authorizedUser);
+                        }//end if
                         if (userNum != 0){
-                           System.out.println("\n1. Send Draft");
-                           System.out.println("2. Delete Draft");
-			   System.out.println("3. Return\n");
+                           out().println("\n1. Send Draft");
+                           out().println("2. Delete Draft");
+			   out().println("3. Return\n");
                            input = in.readLine();
                            if (input.equals("1")){
-                              System.out.println("Input Message ID to Send: ");
+                              out().println("Input Message ID to Send: ");
                               input = in.readLine();
-                              query = String.format("Update message set status = 'Sent' where msgId = '%s' and senderId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
+                              query = "Update message set status = 'Sent' where msgId = ? and senderId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              if (cache != null)
+                                 cache.refreshMessages();
                            }  
                            else if (input.equals("2")){
-                              System.out.println("Input Message ID to delete: ");
+                              out().println("Input Message ID to delete: ");
                               input = in.readLine();
-                              query = String.format("Update message set deleteStatus = 1 where msgId = '%s' and deleteStatus = 0 and senderId = '%s'", input, authorizedUser);
-                              esql.executeUpdate(query);
-                              System.out.println("Deletion Successful!");
+                              query = "Update message set deleteStatus = 1 where msgId = ? and deleteStatus = 0 and senderId = ?";
+                              esql.executeUpdate(query, Integer.parseInt(input), authorizedUser);
+                              if (cache != null)
+                                 cache.refreshMessages();
+                              out().println("Deletion Successful!");
                            }  
                            else {
 				break;
                            }  
                        }   
                         else {
-                           System.out.println("No drafted messages");
+                           out().println("No drafted messages");
                         }  
                        break;
 		case 3: send_messages = false; break;
             }          
          }  
+      }catch(java.util.concurrent.TimeoutException e){
+         err().println ("The message was not confirmed in time; it may still be sent.");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         err().println (e.getMessage ());
+      }finally{
+         QueryStats.exit(outer);
       }
    }
 }//end ProfNetwork
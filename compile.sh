@@ -1,8 +1,11 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
-# Indicate the path of the java compiler to use
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# Indicate the path of the java compiler to use: a JDK 8 or later, the
+# sources use CompletableFuture, java.util.function and java.time.
+# Without JAVA_HOME the javac and java on the PATH are used.
+if [ -n "$JAVA_HOME" ]; then
+  export PATH=$JAVA_HOME/bin:$PATH
+fi
 
 # compile the java program
 javac -d $DIR/../classes $DIR/../src/ProfNetwork.java